@@ -17,6 +17,8 @@ import com.google.common.net.HostAndPort;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.protobuf.ByteString;
+import com.vrg.rapid.messaging.IBroadcaster;
+import com.vrg.rapid.messaging.IBroadcasterFactory;
 import com.vrg.rapid.messaging.IMessagingClient;
 import com.vrg.rapid.messaging.IMessagingServer;
 import com.vrg.rapid.messaging.impl.GrpcClient;
@@ -38,14 +40,18 @@ import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.ExecutionException;
 import java.util.function.BiConsumer;
@@ -76,15 +82,18 @@ public final class Cluster {
     private final MembershipService membershipService;
     private final IMessagingServer rpcServer;
     private final SharedResources sharedResources;
+    private final boolean ownsSharedResources;
     private final Endpoint listenAddress;
 
     private Cluster(final IMessagingServer rpcServer,
                     final MembershipService membershipService,
                     final SharedResources sharedResources,
+                    final boolean ownsSharedResources,
                     final Endpoint listenAddress) {
         this.membershipService = membershipService;
         this.rpcServer = rpcServer;
         this.sharedResources = sharedResources;
+        this.ownsSharedResources = ownsSharedResources;
         this.listenAddress = listenAddress;
     }
 
@@ -115,6 +124,13 @@ public final class Cluster {
         return membershipService.getMetadata();
     }
 
+    /**
+     * Returns the identifiers and endpoints of the current configuration.
+     */
+    MembershipView.Configuration getConfiguration() {
+        return membershipService.getConfiguration();
+    }
+
     /**
      * Register callbacks for cluster events.
      *
@@ -127,13 +143,16 @@ public final class Cluster {
     }
 
     /**
-     * Shutdown the RpcServer
+     * Shutdown the RpcServer. Shared resources supplied through {@link Builder#useSharedResources} are left
+     * running, and are shut down by their owner.
      */
     public void shutdown() {
         LOG.debug("Shutting down RpcServer and MembershipService");
         rpcServer.shutdown();
         membershipService.shutdown();
-        sharedResources.shutdown();
+        if (ownsSharedResources) {
+            sharedResources.shutdown();
+        }
     }
 
     public static class Builder {
@@ -143,11 +162,16 @@ public final class Cluster {
         private Settings settings = new Settings();
         private final Map<ClusterEvents, List<BiConsumer<Long, List<NodeStatusChange>>>> subscriptions =
                 new EnumMap<>(ClusterEvents.class);
+        @Nullable private MembershipView.Configuration knownConfiguration = null;
+        private Map<Endpoint, Metadata> knownMetadata = Collections.emptyMap();
+        @Nullable private Path snapshotFile = null;
+        @Nullable private IBroadcasterFactory broadcasterFactory = null;
 
         // These fields are initialized at the beginning of start() and join()
         @Nullable private IMessagingClient messagingClient = null;
         @Nullable private IMessagingServer messagingServer = null;
         @Nullable private SharedResources sharedResources = null;
+        @Nullable private SharedResources suppliedSharedResources = null;
 
         /**
          * Instantiates a builder for a Rapid Cluster node that will listen on the given {@code listenAddress}
@@ -194,6 +218,21 @@ public final class Cluster {
             return this;
         }
 
+        /**
+         * Set the broadcaster to use for messages that go to every member, such as alerts and consensus votes.
+         * All members of a cluster have to use the same kind of broadcaster. Defaults to sending every message
+         * directly to each member.
+         *
+         * @param broadcasterFactory A factory for the broadcaster, like GossipBroadcaster.Factory or
+         *                           ExpanderBroadcaster.Factory.
+         */
+        @ExperimentalApi
+        public Builder setBroadcasterFactory(final IBroadcasterFactory broadcasterFactory) {
+            Objects.requireNonNull(broadcasterFactory);
+            this.broadcasterFactory = broadcasterFactory;
+            return this;
+        }
+
         /**
          * This is used to register subscriptions for different events
          */
@@ -213,6 +252,27 @@ public final class Cluster {
             return this;
         }
 
+        /**
+         * Run this node on executors and event loops that are shared with other Cluster instances in the same JVM,
+         * instead of creating its own. The thread pool settings of the shared resources apply, and those of this
+         * node's Settings are ignored. Shutting down the Cluster leaves the shared resources running; their owner
+         * shuts them down once all nodes are gone.
+         *
+         * Every node that uses the shared resources runs its protocol steps, such as handling alerts, votes and
+         * view changes, on the same single protocol thread, one at a time. A node whose protocol work is slow,
+         * like one applying a large view change, therefore delays the protocol of all other nodes that share the
+         * resources, which may in turn delay their failure detection and joins. Share resources only between
+         * nodes whose combined protocol load one thread can carry, such as test clusters or small deployments.
+         *
+         * @param sharedResources The executors and event loops to use
+         */
+        @ExperimentalApi
+        public Builder useSharedResources(final SharedResources sharedResources) {
+            Objects.requireNonNull(sharedResources);
+            this.suppliedSharedResources = sharedResources;
+            return this;
+        }
+
         /**
          * Supply the messaging client and server to use.
          */
@@ -223,6 +283,36 @@ public final class Cluster {
             return this;
         }
 
+        /**
+         * Persist the configuration to {@code snapshotFile} after every view change. When joining, a snapshot
+         * left behind by a previous run is used as the known configuration (see {@link #setKnownConfiguration}),
+         * so that a restarted node only receives the changes since it went down.
+         *
+         * @param snapshotFile The file to persist the configuration to
+         */
+        @ExperimentalApi
+        public Builder setMembershipSnapshotFile(final Path snapshotFile) {
+            Objects.requireNonNull(snapshotFile);
+            this.snapshotFile = snapshotFile;
+            return this;
+        }
+
+        /**
+         * Supply a configuration this node was recently part of. When joining, monitors that still know how the
+         * cluster evolved since that configuration respond with only the changes, instead of the whole membership.
+         *
+         * @param configuration The identifiers and endpoints of the configuration
+         * @param metadata The metadata of the members of the configuration
+         */
+        Builder setKnownConfiguration(final MembershipView.Configuration configuration,
+                                      final Map<Endpoint, Metadata> metadata) {
+            Objects.requireNonNull(configuration);
+            Objects.requireNonNull(metadata);
+            this.knownConfiguration = configuration;
+            this.knownMetadata = metadata;
+            return this;
+        }
+
         /**
          * Start a cluster without joining. Required to bootstrap a seed node.
          *
@@ -230,7 +320,8 @@ public final class Cluster {
          */
         public Cluster start() throws IOException {
             Objects.requireNonNull(listenAddress);
-            sharedResources = new SharedResources(listenAddress);
+            sharedResources = suppliedSharedResources != null ? suppliedSharedResources
+                                                             : new SharedResources(listenAddress, settings);
             messagingServer = messagingServer != null
                             ? messagingServer
                             : new GrpcServer(listenAddress, sharedResources, settings.getUseInProcessTransport());
@@ -249,10 +340,12 @@ public final class Cluster {
                                                     : Collections.emptyMap();
             final MembershipService membershipService = new MembershipService(listenAddress, watermarkBuffer,
                                                             membershipView, sharedResources, settings, messagingClient,
-                                                            linkFailureDetector, metadataMap, subscriptions);
+                                                            linkFailureDetector, metadataMap, subscriptions,
+                                                            createBroadcaster(membershipView), snapshotFile);
             messagingServer.setMembershipService(membershipService);
             messagingServer.start();
-            return new Cluster(messagingServer, membershipService, sharedResources, listenAddress);
+            return new Cluster(messagingServer, membershipService, sharedResources,
+                               suppliedSharedResources == null, listenAddress);
         }
 
 
@@ -277,7 +370,8 @@ public final class Cluster {
          */
         Cluster join(final Endpoint seedAddress) throws IOException, InterruptedException {
             NodeId currentIdentifier = Utils.nodeIdFromUUID(UUID.randomUUID());
-            sharedResources = new SharedResources(listenAddress);
+            sharedResources = suppliedSharedResources != null ? suppliedSharedResources
+                                                             : new SharedResources(listenAddress, settings);
             messagingServer = messagingServer != null
                     ? messagingServer
                     : new GrpcServer(listenAddress, sharedResources, settings.getUseInProcessTransport());
@@ -285,6 +379,9 @@ public final class Cluster {
                     ? messagingClient
                     : new GrpcClient(listenAddress, sharedResources, settings);
             messagingServer.start();
+            if (snapshotFile != null && knownConfiguration == null) {
+                loadSnapshot(snapshotFile);
+            }
             for (int attempt = 0; attempt < RETRIES; attempt++) {
                 try {
                     return joinAttempt(seedAddress, currentIdentifier, attempt);
@@ -315,10 +412,35 @@ public final class Cluster {
             }
             messagingServer.shutdown();
             messagingClient.shutdown();
-            sharedResources.shutdown();
+            if (suppliedSharedResources == null) {
+                sharedResources.shutdown();
+            }
             throw new JoinException("Join attempt unsuccessful " + Utils.loggable(listenAddress));
         }
 
+        private IBroadcaster createBroadcaster(final MembershipView membershipView) {
+            assert messagingClient != null;
+            return broadcasterFactory != null
+                    ? broadcasterFactory.createInstance(listenAddress, messagingClient,
+                                                        () -> membershipView.getRingSuccessorsOf(listenAddress))
+                    : new UnicastToAllBroadcaster(messagingClient);
+        }
+
+        /**
+         * Uses the snapshot in {@code file}, if any, as the known configuration. A snapshot that cannot be read
+         * only costs us the delta, so the join proceeds regardless.
+         */
+        private void loadSnapshot(final Path file) {
+            try {
+                final MembershipSnapshot snapshot = MembershipSnapshot.read(file);
+                if (snapshot != null) {
+                    setKnownConfiguration(snapshot.configuration, snapshot.metadata);
+                }
+            } catch (final IOException e) {
+                LOG.error("Ignoring membership snapshot {}: {}", file, e.toString());
+            }
+        }
+
         /**
          * A single attempt by a node to join a cluster. This includes phase one, where it contacts
          * a seed node to receive a list of monitors to contact and the configuration to join. If successful,
@@ -401,6 +523,8 @@ public final class Cluster {
                         .setNodeId(currentIdentifier)
                         .setMetadata(metadata)
                         .setConfigurationId(configurationToJoin)
+                        .setKnownConfigurationId(knownConfiguration != null
+                                                 ? knownConfiguration.getConfigurationId() : 0)
                         .addAllRingNumber(entry.getValue()).build();
                 final RapidRequest request = Utils.toRapidRequest(msg);
                 LOG.info("{} is sending a join-p2 to {} for config {}",
@@ -418,9 +542,39 @@ public final class Cluster {
             assert messagingClient != null && messagingServer != null && sharedResources != null;
             // Safe to proceed. Extract the list of endpoints and identifiers from the message,
             // assemble a MembershipService object and start an RpcServer.
-            final List<Endpoint> allEndpoints = response.getEndpointsList();
-            final List<NodeId> identifiersSeen = response.getIdentifiersList();
+            final Collection<Endpoint> allEndpoints;
+            final Collection<NodeId> identifiersSeen;
             final Map<Endpoint, Metadata> allMetadata = new HashMap<>();
+            if (response.getBaseConfigurationId() == 0) {
+                allEndpoints = response.getEndpointsList();
+                identifiersSeen = response.getIdentifiersList();
+            } else {
+                // The response only carries the changes since the configuration we knew. Apply them to it.
+                if (knownConfiguration == null
+                        || knownConfiguration.getConfigurationId() != response.getBaseConfigurationId()) {
+                    LOG.error("Received changes to an unknown configuration from {}",
+                            Utils.loggable(response.getSender()));
+                    knownConfiguration = null;
+                    throw new JoinPhaseTwoException();
+                }
+                final Set<Endpoint> endpoints = new LinkedHashSet<>(knownConfiguration.endpoints);
+                endpoints.removeAll(response.getRemovedEndpointsList());
+                endpoints.addAll(response.getEndpointsList());
+                final Set<NodeId> identifiers = new LinkedHashSet<>(knownConfiguration.nodeIds);
+                identifiers.addAll(response.getIdentifiersList());
+                allMetadata.putAll(knownMetadata);
+                response.getRemovedEndpointsList().forEach(allMetadata::remove);
+                allEndpoints = endpoints;
+                identifiersSeen = identifiers;
+                if (MembershipView.Configuration.getConfigurationId(identifiersSeen, allEndpoints)
+                        != response.getConfigurationId()) {
+                    // Retry without the known configuration, which makes monitors send the whole membership.
+                    LOG.error("Changes received from {} do not yield configuration {}",
+                            Utils.loggable(response.getSender()), response.getConfigurationId());
+                    knownConfiguration = null;
+                    throw new JoinPhaseTwoException();
+                }
+            }
             for (final Map.Entry<String, Metadata> entry: response.getClusterMetadataMap().entrySet()) {
                 allMetadata.put(Utils.hostFromString(entry.getKey()), entry.getValue());
             }
@@ -435,7 +589,8 @@ public final class Cluster {
                                                   : new PingPongFailureDetector.Factory(listenAddress, messagingClient);
             final MembershipService membershipService =
                     new MembershipService(listenAddress, watermarkBuffer, membershipViewFinal, sharedResources,
-                                          settings, messagingClient, linkFailureDetector, allMetadata, subscriptions);
+                                          settings, messagingClient, linkFailureDetector, allMetadata, subscriptions,
+                                          createBroadcaster(membershipViewFinal), snapshotFile);
             messagingServer.setMembershipService(membershipService);
             if (LOG.isTraceEnabled()) {
                 LOG.trace("{} has monitors {}", listenAddress,
@@ -443,7 +598,8 @@ public final class Cluster {
                 LOG.trace("{} has monitorees {}", listenAddress,
                         membershipViewFinal.getMonitorsOf(listenAddress));
             }
-            return new Cluster(messagingServer, membershipService, sharedResources, listenAddress);
+            return new Cluster(messagingServer, membershipService, sharedResources,
+                               suppliedSharedResources == null, listenAddress);
         }
     }
 
@@ -21,6 +21,7 @@ import com.vrg.rapid.messaging.IMessagingClient;
 import com.vrg.rapid.monitoring.ILinkFailureDetectorFactory;
 import com.vrg.rapid.pb.BatchedLinkUpdateMessage;
 import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.GossipMessage;
 import com.vrg.rapid.pb.JoinMessage;
 import com.vrg.rapid.pb.JoinResponse;
 import com.vrg.rapid.pb.JoinStatusCode;
@@ -36,23 +37,32 @@ import com.vrg.rapid.pb.RapidResponse;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
-import javax.annotation.concurrent.NotThreadSafe;
+import javax.annotation.concurrent.ThreadSafe;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingDeque;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import java.util.function.BiConsumer;
@@ -62,16 +72,23 @@ import java.util.stream.Collectors;
 /**
  * Membership server class that implements the Rapid protocol.
  *
- * Note: This class is not thread-safe yet. RpcServer.start() uses a single threaded messagingExecutor during the server
- * initialization to make sure that only a single thread runs the process* methods.
+ * handleMessage() may be called from any thread. Every message is handled by one of the stages in
+ * {@link ProtocolStage}. State-mutating stages run on the single threaded protocol executor, which confines
+ * the protocol state to one thread. With concurrent protocol execution enabled, read-only stages (PreJoin
+ * handling) run on a separate pool instead, against the thread-safe MembershipView, so that they do not hold
+ * up joins, alerts and consensus messages.
  *
  */
-@NotThreadSafe
+@ThreadSafe
 public final class MembershipService {
     private static final Logger LOG = LoggerFactory.getLogger(MembershipService.class);
-    private static final int BATCHING_WINDOW_IN_MS = 100;
     private static final int DEFAULT_FAILURE_DETECTOR_INITIAL_DELAY_IN_MS = 0;
     static final int DEFAULT_FAILURE_DETECTOR_INTERVAL_IN_MS = 1000;
+    static final int DEFAULT_BATCHING_MAX_MESSAGES = 1000;
+    static final int DEFAULT_BATCHING_MAX_DELAY_IN_MS = 500;
+    static final int DEFAULT_BATCHING_IDLE_GAP_IN_MS = 100;
+    static final boolean DEFAULT_USE_CONCURRENT_PROTOCOL_EXECUTION = false;
+    static final int DEFAULT_VIEW_CHANGE_HISTORY_SIZE = 32;
     private final MembershipView membershipView;
     private final WatermarkBuffer watermarkBuffer;
     private final Endpoint myAddr;
@@ -80,6 +97,7 @@ public final class MembershipService {
             new HashMap<>();
     private final Map<Endpoint, NodeId> joinerUuid = new HashMap<>();
     private final Map<Endpoint, Metadata> joinerMetadata = new HashMap<>();
+    private final Map<Endpoint, Long> joinerKnownConfigurationId = new HashMap<>();
     private final IMessagingClient messagingClient;
     private final MetadataManager metadataManager;
 
@@ -91,12 +109,18 @@ public final class MembershipService {
 
     // Fields used by batching logic.
     @GuardedBy("batchSchedulerLock")
+    private long firstEnqueueTimestamp = -1;   // Timestamp of the oldest message in sendQueue
+    @GuardedBy("batchSchedulerLock")
     private long lastEnqueueTimestamp = -1;    // Timestamp
     @GuardedBy("batchSchedulerLock")
     private final LinkedBlockingQueue<LinkUpdateMessage> sendQueue = new LinkedBlockingQueue<>();
+    @GuardedBy("batchSchedulerLock") @Nullable
+    private ScheduledFuture<?> linkUpdateBatcherJob = null;
+    @GuardedBy("batchSchedulerLock")
+    private boolean isShutdown = false;
     private final Lock batchSchedulerLock = new ReentrantLock();
+    private final LinkUpdateBatcher linkUpdateBatcher = new LinkUpdateBatcher();
     private final ScheduledExecutorService backgroundTasksExecutor;
-    private final ScheduledFuture<?> linkUpdateBatcherJob;
     private final List<ScheduledFuture<?>> failureDetectorJobs;
     private final SharedResources sharedResources;
 
@@ -108,20 +132,36 @@ public final class MembershipService {
     private final Object membershipUpdateLock = new Object();
     private final ISettings settings;
 
+    // SAFE_TO_JOIN response for the latest configuration, see getSafeToJoinResponse()
+    @Nullable private volatile RapidResponse safeToJoinResponse = null;
+
+    // Recent view changes, used to send rejoining nodes only what changed since the configuration they knew
+    private final ViewChangeHistory viewChangeHistory = new ViewChangeHistory(DEFAULT_VIEW_CHANGE_HISTORY_SIZE);
+
+    // File to persist the current configuration to after every view change, see scheduleSnapshotWrite()
+    @Nullable private final Path snapshotFile;
+    private final AtomicBoolean snapshotWritePending = new AtomicBoolean(false);
+    private final Object snapshotWriteLock = new Object();
+
+    // Queue depth and latency of the tasks of each protocol stage
+    private final Map<ProtocolStage, ProtocolStageMetrics> stageMetrics = new EnumMap<>(ProtocolStage.class);
+
 
     MembershipService(final Endpoint myAddr, final WatermarkBuffer watermarkBuffer,
                       final MembershipView membershipView, final SharedResources sharedResources,
                       final ISettings settings, final IMessagingClient messagingClient,
                       final ILinkFailureDetectorFactory linkFailureDetector) {
         this(myAddr, watermarkBuffer, membershipView, sharedResources, settings, messagingClient, linkFailureDetector,
-             Collections.emptyMap(), new EnumMap<>(ClusterEvents.class));
+             Collections.emptyMap(), new EnumMap<>(ClusterEvents.class), new UnicastToAllBroadcaster(messagingClient),
+             null);
     }
 
     MembershipService(final Endpoint myAddr, final WatermarkBuffer watermarkBuffer,
                       final MembershipView membershipView, final SharedResources sharedResources,
                       final ISettings settings, final IMessagingClient messagingClient,
                       final ILinkFailureDetectorFactory linkFailureDetector, final Map<Endpoint, Metadata> metadataMap,
-                      final Map<ClusterEvents, List<BiConsumer<Long, List<NodeStatusChange>>>> subscriptions) {
+                      final Map<ClusterEvents, List<BiConsumer<Long, List<NodeStatusChange>>>> subscriptions,
+                      final IBroadcaster broadcaster, @Nullable final Path snapshotFile) {
         this.myAddr = myAddr;
         this.settings = settings;
         this.membershipView = membershipView;
@@ -130,9 +170,14 @@ public final class MembershipService {
         this.metadataManager = new MetadataManager();
         this.metadataManager.addMetadata(metadataMap);
         this.messagingClient = messagingClient;
-        this.broadcaster = new UnicastToAllBroadcaster(messagingClient);
+        this.broadcaster = broadcaster;
         this.subscriptions = subscriptions;
         this.fdFactory = linkFailureDetector;
+        this.snapshotFile = snapshotFile;
+
+        for (final ProtocolStage stage: ProtocolStage.values()) {
+            stageMetrics.put(stage, new ProtocolStageMetrics());
+        }
 
         // Make sure there is an empty list for every enum type
         Arrays.stream(ClusterEvents.values()).forEach(event ->
@@ -140,8 +185,6 @@ public final class MembershipService {
 
         // Schedule background jobs
         this.backgroundTasksExecutor = sharedResources.getScheduledTasksExecutor();
-        linkUpdateBatcherJob = this.backgroundTasksExecutor.scheduleAtFixedRate(new LinkUpdateBatcher(),
-                0, BATCHING_WINDOW_IN_MS, TimeUnit.MILLISECONDS);
 
         this.broadcaster.setMembership(membershipView.getRing(0));
         // this::linkFailureNotification is invoked by the failure detector whenever an edge
@@ -158,6 +201,7 @@ public final class MembershipService {
         final long configurationId = membershipView.getCurrentConfigurationId();
         final List<NodeStatusChange> nodeStatusChanges = getInitialViewChange();
         subscriptions.get(ClusterEvents.VIEW_CHANGE).forEach(cb -> cb.accept(configurationId, nodeStatusChanges));
+        scheduleSnapshotWrite();
     }
 
     /**
@@ -179,12 +223,24 @@ public final class MembershipService {
             case PHASE2AMESSAGE:
             case PHASE2BMESSAGE:
                 return handleConsensusMessages(msg);
+            case GOSSIPMESSAGE:
+                return handleMessage(msg.getGossipMessage());
             case CONTENT_NOT_SET:
             default:
                 throw new IllegalArgumentException("Unidentified RapidRequest type " + msg.getContentCase());
         }
     }
 
+    /**
+     * Invoked when the broadcaster of another member relays a broadcast message to this node. The broadcaster
+     * relays it further if needed, and the message is handled here the first time it arrives.
+     */
+    private ListenableFuture<RapidResponse> handleMessage(final GossipMessage gossipMessage) {
+        final Optional<RapidRequest> payload = broadcaster.receive(gossipMessage);
+        return payload.isPresent() ? handleMessage(payload.get())
+                                   : Futures.immediateFuture(RapidResponse.getDefaultInstance());
+    }
+
     /**
      * This is invoked by a new node joining the network at a seed node.
      * The seed responds with the current configuration ID and a list of monitors
@@ -193,21 +249,21 @@ public final class MembershipService {
     private ListenableFuture<RapidResponse> handleMessage(final PreJoinMessage msg) {
         final SettableFuture<RapidResponse> future = SettableFuture.create();
 
-        sharedResources.getProtocolExecutor().execute(() -> {
+        // Only reads from the MembershipView, and answers from a single configuration. If the configuration
+        // changes after that, the joiner is told so in phase 2 and retries.
+        execute(ProtocolStage.PRE_JOIN, () -> {
             final Endpoint joiningEndpoint = msg.getSender();
-            final JoinStatusCode statusCode = membershipView.isSafeToJoin(joiningEndpoint, msg.getNodeId());
-            final JoinResponse.Builder builder = JoinResponse.newBuilder()
-                    .setSender(myAddr)
-                    .setConfigurationId(membershipView.getCurrentConfigurationId())
-                    .setStatusCode(statusCode);
+            final MembershipView.PreJoinCheck check = membershipView.checkPreJoin(joiningEndpoint, msg.getNodeId());
             LOG.info("Join at seed for {seed:{}, sender:{}, config:{}, size:{}}",
                     Utils.loggable(myAddr), Utils.loggable(msg.getSender()),
-                    membershipView.getCurrentConfigurationId(), membershipView.getMembershipSize());
-            if (statusCode.equals(JoinStatusCode.SAFE_TO_JOIN)
-                    || statusCode.equals(JoinStatusCode.HOSTNAME_ALREADY_IN_RING)) {
-                // Return a list of monitors for the joiner to contact for phase 2 of the protocol
-                builder.addAllEndpoints(membershipView.getExpectedMonitorsOf(joiningEndpoint));
-            }
+                    check.configurationId, check.membershipSize);
+            // For SAFE_TO_JOIN and HOSTNAME_ALREADY_IN_RING, this lists the monitors for the joiner to contact
+            // in phase 2 of the protocol
+            final JoinResponse.Builder builder = JoinResponse.newBuilder()
+                    .setSender(myAddr)
+                    .setConfigurationId(check.configurationId)
+                    .setStatusCode(check.statusCode)
+                    .addAllEndpoints(check.expectedMonitors);
             future.set(Utils.toRapidResponse(builder.build()));
         });
         return future;
@@ -222,7 +278,7 @@ public final class MembershipService {
     private ListenableFuture<RapidResponse> handleMessage(final JoinMessage joinMessage) {
         final SettableFuture<RapidResponse> future = SettableFuture.create();
 
-        sharedResources.getProtocolExecutor().execute(() -> {
+        execute(ProtocolStage.JOIN, () -> {
             final long currentConfiguration = membershipView.getCurrentConfigurationId();
             if (currentConfiguration == joinMessage.getConfigurationId()) {
                 LOG.trace("Enqueuing SAFE_TO_JOIN for {sender:{}, config:{}, size:{}}",
@@ -231,6 +287,9 @@ public final class MembershipService {
 
                 joinersToRespondTo.computeIfAbsent(joinMessage.getSender(),
                         k -> new LinkedBlockingDeque<>()).add(future);
+                if (joinMessage.getKnownConfigurationId() != 0) {
+                    joinerKnownConfigurationId.put(joinMessage.getSender(), joinMessage.getKnownConfigurationId());
+                }
 
                 final LinkUpdateMessage msg = LinkUpdateMessage.newBuilder()
                         .setLinkSrc(myAddr)
@@ -245,13 +304,9 @@ public final class MembershipService {
             } else {
                 // This handles the corner case where the configuration changed between phase 1 and phase 2
                 // of the joining node's bootstrap. It should attempt to rejoin the network.
-                final MembershipView.Configuration configuration = membershipView.getConfiguration();
                 LOG.info("Wrong configuration for {sender:{}, config:{}, myConfig:{}, size:{}}",
                         Utils.loggable(joinMessage.getSender()), joinMessage.getConfigurationId(),
                         currentConfiguration, membershipView.getMembershipSize());
-                JoinResponse.Builder responseBuilder = JoinResponse.newBuilder()
-                        .setSender(myAddr)
-                        .setConfigurationId(configuration.getConfigurationId());
                 if (membershipView.isHostPresent(joinMessage.getSender())
                         && membershipView.isIdentifierPresent(joinMessage.getNodeId())) {
                     LOG.info("Joining host already present : {sender:{}, config:{}, myConfig:{}, size:{}}",
@@ -261,16 +316,18 @@ public final class MembershipService {
                     // the configuration, but the JoinPhase2 messages show up at the monitor
                     // after it has already added the joiner. In this case, we simply
                     // tell the sender that they're safe to join.
-                    responseBuilder = responseBuilder.setStatusCode(JoinStatusCode.SAFE_TO_JOIN)
-                            .addAllEndpoints(configuration.endpoints)
-                            .addAllIdentifiers(configuration.nodeIds);
+                    future.set(getJoinResponse(joinMessage.getKnownConfigurationId())); // new configuration
                 } else {
-                    responseBuilder = responseBuilder.setStatusCode(JoinStatusCode.CONFIG_CHANGED);
                     LOG.info("Returning CONFIG_CHANGED for {sender:{}, config:{}, size:{}}",
-                            Utils.loggable(joinMessage.getSender()), configuration.getConfigurationId(),
-                            configuration.endpoints.size());
+                            Utils.loggable(joinMessage.getSender()), currentConfiguration,
+                            membershipView.getMembershipSize());
+                    final JoinResponse response = JoinResponse.newBuilder()
+                            .setSender(myAddr)
+                            .setConfigurationId(currentConfiguration)
+                            .setStatusCode(JoinStatusCode.CONFIG_CHANGED)
+                            .build();
+                    future.set(Utils.toRapidResponse(response));
                 }
-                future.set(Utils.toRapidResponse(responseBuilder.build())); // new configuration
             }
         });
         return future;
@@ -289,7 +346,7 @@ public final class MembershipService {
         Objects.requireNonNull(messageBatch);
         final SettableFuture<RapidResponse> future = SettableFuture.create();
 
-        sharedResources.getProtocolExecutor().execute(() -> {
+        execute(ProtocolStage.LINK_UPDATE, () -> {
             // We already have a proposal for this round
             // => we have initiated consensus and cannot go back on our proposal.
             if (announcedProposal) {
@@ -297,13 +354,15 @@ public final class MembershipService {
             }
             final long currentConfigurationId = membershipView.getCurrentConfigurationId();
             final int membershipSize = membershipView.getMembershipSize();
-            final Set<Endpoint> proposal = messageBatch.getMessagesList().stream()
-                    // First, we filter out invalid messages that violate membership invariants.
-                    .filter(msg -> filterLinkUpdateMessages(messageBatch, msg, membershipSize, currentConfigurationId))
-                    // We then apply all the valid messages into our condition detector to obtain a view change proposal
-                    .map(watermarkBuffer::aggregateForProposal)
-                    .flatMap(List::stream)
-                    .collect(Collectors.toSet());
+            // First, we filter out invalid messages that violate membership invariants.
+            final List<LinkUpdateMessage> validMessages = new ArrayList<>(messageBatch.getMessagesCount());
+            for (final LinkUpdateMessage msg: messageBatch.getMessagesList()) {
+                if (filterLinkUpdateMessages(messageBatch, msg, membershipSize, currentConfigurationId)) {
+                    validMessages.add(msg);
+                }
+            }
+            // We then apply all the valid messages into our condition detector to obtain a view change proposal
+            final Set<Endpoint> proposal = new HashSet<>(watermarkBuffer.aggregateBatch(validMessages));
 
             // Lastly, we apply implicit detections
             proposal.addAll(watermarkBuffer.invalidateFailingLinks(membershipView));
@@ -337,7 +396,7 @@ public final class MembershipService {
      */
     private ListenableFuture<RapidResponse> handleConsensusMessages(final RapidRequest request) {
         final SettableFuture<RapidResponse> future = SettableFuture.create();
-        sharedResources.getProtocolExecutor().execute(() -> future.set(fastPaxosInstance.handleMessages(request)));
+        execute(ProtocolStage.CONSENSUS, () -> future.set(fastPaxosInstance.handleMessages(request)));
         return future;
     }
 
@@ -353,33 +412,42 @@ public final class MembershipService {
         cancelFailureDetectorJobs();
 
         final List<NodeStatusChange> statusChanges = new ArrayList<>(proposal.size());
+        final Map<Endpoint, NodeId> nodesToAdd = new HashMap<>();
+        final Set<Endpoint> nodesToRemove = new HashSet<>();
+        final Map<Endpoint, Metadata> addedMetadata = new HashMap<>();
         synchronized (membershipUpdateLock) {
+            final long previousConfigurationId = membershipView.getCurrentConfigurationId();
             for (final Endpoint node : proposal) {
                 final boolean isPresent = membershipView.isHostPresent(node);
                 // If the node is already in the ring, remove it. Else, add it.
                 // XXX: Maybe there's a cleaner way to do this in the future because
                 // this ties us to just two states a node can be in.
                 if (isPresent) {
-                    membershipView.ringDelete(node);
+                    nodesToRemove.add(node);
                     statusChanges.add(new NodeStatusChange(node, LinkStatus.DOWN, metadataManager.get(node)));
                     metadataManager.removeNode(node);
                 }
                 else {
                     assert joinerUuid.containsKey(node);
-                    final NodeId nodeId = joinerUuid.remove(node);
-                    membershipView.ringAdd(node, nodeId);
+                    nodesToAdd.put(node, joinerUuid.remove(node));
                     final Metadata metadata = joinerMetadata.remove(node);
                     if (metadata.getMetadataCount() > 0) {
                         metadataManager.addMetadata(Collections.singletonMap(node, metadata));
+                        addedMetadata.put(node, metadata);
                     }
                     statusChanges.add(new NodeStatusChange(node, LinkStatus.UP, metadata));
                 }
             }
+            // Apply the whole view change to the rings at once
+            membershipView.applyProposal(nodesToAdd, nodesToRemove);
+            viewChangeHistory.record(previousConfigurationId, membershipView.getCurrentConfigurationId(),
+                                     nodesToAdd, addedMetadata, nodesToRemove);
         }
 
         final long currentConfigurationId = membershipView.getCurrentConfigurationId();
         // Publish an event to the listeners.
         subscriptions.get(ClusterEvents.VIEW_CHANGE).forEach(cb -> cb.accept(currentConfigurationId, statusChanges));
+        scheduleSnapshotWrite();
 
         // Clear data structures for the next round.
         watermarkBuffer.clear();
@@ -431,7 +499,7 @@ public final class MembershipService {
      * @param monitoree The monitoree that has failed.
      */
     private void linkFailureNotification(final Endpoint monitoree, final long configurationId) {
-        sharedResources.getProtocolExecutor().execute(() -> {
+        execute(ProtocolStage.LINK_FAILURE, () -> {
             if (configurationId != membershipView.getCurrentConfigurationId()) {
                 LOG.info("Ignoring failure notification from old configuration" +
                                 " {monitoree:{}, config:{}, oldConfiguration:{}}",
@@ -490,29 +558,117 @@ public final class MembershipService {
         }
     }
 
+    /**
+     * Returns the current configuration.
+     *
+     * @return the identifiers and endpoints of the current configuration.
+     */
+    MembershipView.Configuration getConfiguration() {
+        synchronized (membershipUpdateLock) {
+            return membershipView.getConfiguration();
+        }
+    }
+
     /**
      * Shuts down all the executors.
      */
     void shutdown() {
-        linkUpdateBatcherJob.cancel(true);
+        batchSchedulerLock.lock();
+        try {
+            isShutdown = true;
+            if (linkUpdateBatcherJob != null) {
+                linkUpdateBatcherJob.cancel(true);
+            }
+        }
+        finally {
+            batchSchedulerLock.unlock();
+        }
         failureDetectorJobs.forEach(k -> k.cancel(true));
         messagingClient.shutdown();
     }
 
     /**
-     * Queues a LinkUpdateMessage to be broadcasted after potentially being batched.
+     * Returns the queue depth and latency counters of a protocol stage.
+     */
+    ProtocolStageMetrics getStageMetrics(final ProtocolStage stage) {
+        return stageMetrics.get(stage);
+    }
+
+    /**
+     * Runs a task of the given protocol stage on the executor for that stage, and keeps track of
+     * the stage's queue depth and task latency.
+     */
+    private void execute(final ProtocolStage stage, final Runnable task) {
+        final ExecutorService executor = stage.isReadOnly && settings.getUseConcurrentProtocolExecution()
+                                            ? sharedResources.getReadOnlyProtocolExecutor()
+                                            : sharedResources.getProtocolExecutor();
+        final ProtocolStageMetrics metrics = stageMetrics.get(stage);
+        final int depth = metrics.queueDepth.incrementAndGet();
+        LOG.trace("Queue depth for stage {} is {}", stage, depth);
+        final long submittedAt = System.nanoTime();
+        executor.execute(() -> {
+            metrics.queueDepth.decrementAndGet();
+            try {
+                task.run();
+            } finally {
+                metrics.taskCompleted(System.nanoTime() - submittedAt);
+            }
+        });
+    }
+
+    /**
+     * Queues a LinkUpdateMessage to be broadcasted after potentially being batched. The batch is sent out
+     * as soon as it reaches the configured size, and otherwise by the LinkUpdateBatcher.
      *
      * @param msg the LinkUpdateMessage to be broadcasted
      */
     private void enqueueLinkUpdateMessage(final LinkUpdateMessage msg) {
+        final List<LinkUpdateMessage> messages;
         batchSchedulerLock.lock();
         try {
-            lastEnqueueTimestamp = System.currentTimeMillis();
+            if (isShutdown) {
+                return;
+            }
+            final long now = System.currentTimeMillis();
+            if (sendQueue.isEmpty()) {
+                firstEnqueueTimestamp = now;
+            }
+            lastEnqueueTimestamp = now;
             sendQueue.add(msg);
+            if (sendQueue.size() < settings.getBatchingMaxMessages()) {
+                if (linkUpdateBatcherJob == null) {
+                    final long delay = Math.min(settings.getBatchingIdleGapInMs(), settings.getBatchingMaxDelayInMs());
+                    linkUpdateBatcherJob = backgroundTasksExecutor.schedule(linkUpdateBatcher, delay,
+                                                                            TimeUnit.MILLISECONDS);
+                }
+                return;
+            }
+            messages = drainSendQueue();
         }
         finally {
             batchSchedulerLock.unlock();
         }
+        // A scheduled LinkUpdateBatcher run, if any, will find the queue empty or will reschedule
+        // itself for messages enqueued after this point.
+        backgroundTasksExecutor.execute(() -> broadcastLinkUpdateMessages(messages));
+    }
+
+    @GuardedBy("batchSchedulerLock")
+    private List<LinkUpdateMessage> drainSendQueue() {
+        LOG.trace("Scheduler is sending out {} messages", sendQueue.size());
+        final ArrayList<LinkUpdateMessage> messages = new ArrayList<>(sendQueue.size());
+        final int numDrained = sendQueue.drainTo(messages);
+        assert numDrained > 0;
+        firstEnqueueTimestamp = -1;
+        return messages;
+    }
+
+    private void broadcastLinkUpdateMessages(final List<LinkUpdateMessage> messages) {
+        final BatchedLinkUpdateMessage batched = BatchedLinkUpdateMessage.newBuilder()
+                .setSender(myAddr)
+                .addAllMessages(messages)
+                .build();
+        broadcaster.broadcast(Utils.toRapidRequest(batched));
     }
 
     /**
@@ -543,32 +699,34 @@ public final class MembershipService {
 
 
     /**
-     * Batches outgoing LinkUpdateMessages into a single BatchLinkUpdateMessage.
+     * Batches outgoing LinkUpdateMessages into a single BatchLinkUpdateMessage. The batch is sent out
+     * once no message has been enqueued for the idle gap, or once the oldest message in the batch has
+     * waited for the maximum delay, whichever comes first. At most one run is scheduled at a time.
      */
     private class LinkUpdateBatcher implements Runnable {
-        private static final int BATCH_WINDOW_IN_MS = 100;
-
         @Override
         public void run() {
+            final List<LinkUpdateMessage> messages;
             batchSchedulerLock.lock();
             try {
-                // Wait one BATCH_WINDOW_IN_MS since last add before sending out
-                if (!sendQueue.isEmpty() && lastEnqueueTimestamp > 0
-                        && (System.currentTimeMillis() - lastEnqueueTimestamp) > BATCH_WINDOW_IN_MS) {
-                    LOG.trace("Scheduler is sending out {} messages", sendQueue.size());
-                    final ArrayList<LinkUpdateMessage> messages = new ArrayList<>(sendQueue.size());
-                    final int numDrained = sendQueue.drainTo(messages);
-                    assert numDrained > 0;
-                    final BatchedLinkUpdateMessage batched = BatchedLinkUpdateMessage.newBuilder()
-                            .setSender(myAddr)
-                            .addAllMessages(messages)
-                            .build();
-                    broadcaster.broadcast(Utils.toRapidRequest(batched));
+                linkUpdateBatcherJob = null;
+                if (isShutdown || sendQueue.isEmpty()) {
+                    return;
+                }
+                final long deadline = Math.min(firstEnqueueTimestamp + settings.getBatchingMaxDelayInMs(),
+                                               lastEnqueueTimestamp + settings.getBatchingIdleGapInMs());
+                final long now = System.currentTimeMillis();
+                if (now < deadline) {
+                    linkUpdateBatcherJob = backgroundTasksExecutor.schedule(this, deadline - now,
+                                                                            TimeUnit.MILLISECONDS);
+                    return;
                 }
+                messages = drainSendQueue();
             }
             finally {
                 batchSchedulerLock.unlock();
             }
+            broadcastLinkUpdateMessages(messages);
         }
     }
 
@@ -648,12 +806,90 @@ public final class MembershipService {
      * Respond with the current configuration to all nodes that attempted to join through this node.
      */
     private void respondToJoiners(final List<Endpoint> proposal) {
-        // This should yield the new configuration.
+        // Send out responses to all the nodes waiting to join.
+        for (final Endpoint node: proposal) {
+            final Long knownConfigurationId = joinerKnownConfigurationId.remove(node);
+            if (joinersToRespondTo.containsKey(node)) {
+                // This should yield the new configuration.
+                final RapidResponse response = getJoinResponse(knownConfigurationId != null ? knownConfigurationId : 0);
+                backgroundTasksExecutor.execute(
+                    () -> joinersToRespondTo.remove(node)
+                            .forEach(settableFuture -> settableFuture.set(response))
+                );
+            }
+        }
+    }
+
+    /**
+     * Persists the current configuration and metadata to the snapshot file, if there is one. The write happens
+     * in the background. A write requested while another one is still queued is folded into the queued one,
+     * which reads the state only when it runs.
+     */
+    private void scheduleSnapshotWrite() {
+        if (snapshotFile == null || !snapshotWritePending.compareAndSet(false, true)) {
+            return;
+        }
+        backgroundTasksExecutor.execute(() -> {
+            synchronized (snapshotWriteLock) {
+                snapshotWritePending.set(false);
+                final MembershipView.Configuration configuration;
+                final Map<String, Metadata> metadata;
+                synchronized (membershipUpdateLock) {
+                    configuration = membershipView.getConfiguration();
+                    metadata = metadataManager.getAllMetadata();
+                }
+                try {
+                    MembershipSnapshot.write(snapshotFile, configuration, metadata);
+                } catch (final IOException e) {
+                    LOG.error("Could not write membership snapshot to {}: {}", snapshotFile, e.toString());
+                }
+            }
+        });
+    }
+
+    /**
+     * Returns the SAFE_TO_JOIN response for a joiner that last knew configuration {@code knownConfigurationId}.
+     * If the view change history covers the way from that configuration to the current one, the response only
+     * carries the delta. Otherwise, or if {@code knownConfigurationId} is 0, it carries the whole configuration.
+     */
+    private RapidResponse getJoinResponse(final long knownConfigurationId) {
+        if (knownConfigurationId == 0) {
+            return getSafeToJoinResponse();
+        }
+        final ViewChangeHistory.Delta delta = viewChangeHistory.deltaSince(knownConfigurationId,
+                                                    membershipView.getCurrentConfigurationId());
+        if (delta == null
+                || delta.added.size() + delta.removed.size() >= membershipView.getMembershipSize()) {
+            return getSafeToJoinResponse();
+        }
+        final JoinResponse.Builder builder = JoinResponse.newBuilder()
+                .setSender(myAddr)
+                .setStatusCode(JoinStatusCode.SAFE_TO_JOIN)
+                .setConfigurationId(membershipView.getCurrentConfigurationId())
+                .setBaseConfigurationId(delta.baseConfigurationId)
+                .addAllEndpoints(delta.added.keySet())
+                .addAllIdentifiers(delta.identifiers)
+                .addAllRemovedEndpoints(delta.removed);
+        delta.metadata.forEach((node, metadata) ->
+                builder.putClusterMetadata(node.getHostname() + ":" + node.getPort(), metadata));
+        return Utils.toRapidResponse(builder.build());
+    }
+
+    /**
+     * Returns the SAFE_TO_JOIN response carrying the current configuration. The response is identical for
+     * every joiner, so it is built once per configuration and shared until the next view change. GrpcServer
+     * recognizes the shared instance, and encodes it once as well.
+     */
+    private RapidResponse getSafeToJoinResponse() {
         final MembershipView.Configuration configuration = membershipView.getConfiguration();
+        final RapidResponse cached = safeToJoinResponse;
+        if (cached != null && cached.getJoinResponse().getConfigurationId() == configuration.getConfigurationId()) {
+            return cached;
+        }
         assert !configuration.endpoints.isEmpty();
         assert !configuration.nodeIds.isEmpty();
 
-        final JoinResponse response = JoinResponse.newBuilder()
+        final JoinResponse joinResponse = JoinResponse.newBuilder()
                 .setSender(myAddr)
                 .setStatusCode(JoinStatusCode.SAFE_TO_JOIN)
                 .setConfigurationId(configuration.getConfigurationId())
@@ -661,19 +897,74 @@ public final class MembershipService {
                 .addAllIdentifiers(configuration.nodeIds)
                 .putAllClusterMetadata(metadataManager.getAllMetadata())
                 .build();
+        final RapidResponse response = Utils.toRapidResponse(joinResponse);
+        safeToJoinResponse = response;
+        return response;
+    }
 
-        // Send out responses to all the nodes waiting to join.
-        for (final Endpoint node: proposal) {
-            if (joinersToRespondTo.containsKey(node)) {
-                backgroundTasksExecutor.execute(
-                    () -> joinersToRespondTo.remove(node)
-                            .forEach(settableFuture -> settableFuture.set(Utils.toRapidResponse(response)))
-                );
-            }
+    /**
+     * The stages of message processing in MembershipService.
+     */
+    enum ProtocolStage {
+        PRE_JOIN(true),
+        JOIN(false),
+        LINK_UPDATE(false),
+        LINK_FAILURE(false),
+        CONSENSUS(false);
+
+        private final boolean isReadOnly;
+
+        ProtocolStage(final boolean isReadOnly) {
+            this.isReadOnly = isReadOnly;
+        }
+    }
+
+    /**
+     * Counters for the tasks of one protocol stage. A task's latency runs from its submission to the stage's
+     * executor until it completes, so it includes the time the task waited in the queue.
+     */
+    @ThreadSafe
+    static final class ProtocolStageMetrics {
+        private final AtomicInteger queueDepth = new AtomicInteger(0);
+        private final AtomicLong completedTasks = new AtomicLong(0);
+        private final AtomicLong totalLatencyNanos = new AtomicLong(0);
+        private final AtomicLong maxLatencyNanos = new AtomicLong(0);
+
+        private void taskCompleted(final long latencyNanos) {
+            completedTasks.incrementAndGet();
+            totalLatencyNanos.addAndGet(latencyNanos);
+            maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+        }
+
+        /**
+         * Returns the number of tasks that are waiting for their executor.
+         */
+        int getQueueDepth() {
+            return queueDepth.get();
+        }
+
+        long getCompletedTasks() {
+            return completedTasks.get();
+        }
+
+        long getTotalLatencyNanos() {
+            return totalLatencyNanos.get();
+        }
+
+        long getMaxLatencyNanos() {
+            return maxLatencyNanos.get();
         }
     }
 
     interface ISettings {
         int getFailureDetectorIntervalInMs();
+
+        int getBatchingMaxMessages();
+
+        int getBatchingMaxDelayInMs();
+
+        int getBatchingIdleGapInMs();
+
+        boolean getUseConcurrentProtocolExecution();
     }
 }
\ No newline at end of file
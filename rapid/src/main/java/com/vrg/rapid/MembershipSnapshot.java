@@ -0,0 +1,101 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid;
+
+import com.google.common.collect.ImmutableMap;
+import com.vrg.rapid.pb.ConfigurationSnapshot;
+import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.Metadata;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.Immutable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+
+/**
+ * The last configuration decided by a node, along with the metadata of its members, as persisted to disk
+ * after every view change. A restarted node uses it as the base of a delta join, so that monitors only send
+ * what changed while it was down.
+ *
+ * The file holds a single serialized ConfigurationSnapshot message. It is replaced atomically on every write,
+ * and memory-mapped when read.
+ */
+@Immutable
+final class MembershipSnapshot {
+    final MembershipView.Configuration configuration;
+    final Map<Endpoint, Metadata> metadata;
+
+    private MembershipSnapshot(final MembershipView.Configuration configuration,
+                               final Map<Endpoint, Metadata> metadata) {
+        this.configuration = configuration;
+        this.metadata = metadata;
+    }
+
+    /**
+     * Writes a snapshot of {@code configuration} to {@code file}, replacing any previous snapshot.
+     *
+     * @param file the snapshot file
+     * @param configuration the configuration to persist
+     * @param metadata the metadata of the members of the configuration, keyed by "hostname:port"
+     * @throws IOException if the snapshot cannot be written
+     */
+    static void write(final Path file, final MembershipView.Configuration configuration,
+                      final Map<String, Metadata> metadata) throws IOException {
+        final ConfigurationSnapshot snapshot = ConfigurationSnapshot.newBuilder()
+                .setConfigurationId(configuration.getConfigurationId())
+                .addAllEndpoints(configuration.endpoints)
+                .addAllIdentifiers(configuration.nodeIds)
+                .putAllClusterMetadata(metadata)
+                .build();
+        final Path temporaryFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+            snapshot.writeTo(out);
+        }
+        Files.move(temporaryFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the snapshot stored in {@code file}.
+     *
+     * @param file the snapshot file
+     * @return the snapshot, or null if there is no such file
+     * @throws IOException if the file cannot be read, or does not hold a consistent snapshot
+     */
+    @Nullable
+    static MembershipSnapshot read(final Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        final ConfigurationSnapshot snapshot;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            snapshot = ConfigurationSnapshot.parseFrom(buffer);
+        }
+        final MembershipView.Configuration configuration =
+                new MembershipView.Configuration(snapshot.getIdentifiersList(), snapshot.getEndpointsList());
+        if (configuration.getConfigurationId() != snapshot.getConfigurationId()) {
+            throw new IOException("Inconsistent membership snapshot in " + file);
+        }
+        final ImmutableMap.Builder<Endpoint, Metadata> metadata = ImmutableMap.builder();
+        snapshot.getClusterMetadataMap().forEach((k, v) -> metadata.put(Utils.hostFromString(k), v));
+        return new MembershipSnapshot(configuration, metadata.build());
+    }
+}
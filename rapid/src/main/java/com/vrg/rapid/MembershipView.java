@@ -13,53 +13,61 @@
 
 package com.vrg.rapid;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.vrg.rapid.pb.Endpoint;
 import com.vrg.rapid.pb.JoinStatusCode;
 import com.vrg.rapid.pb.NodeId;
 import net.openhft.hashing.LongHashFunction;
 
+import javax.annotation.Nullable;
 import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
 import javax.annotation.concurrent.ThreadSafe;
-import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.NavigableSet;
+import java.util.NavigableMap;
 import java.util.Objects;
 import java.util.Set;
-import java.util.TreeSet;
+import java.util.TreeMap;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ToLongFunction;
 
 /**
  * Hosts K permutations of the memberlist that represent the monitoring
  * relationship between nodes; every node monitors its successor on each ring.
  *
+ * Every member's position on ring k is given by a 64-bit hash of its address with seed k. These K hashes
+ * are computed once when a node enters the view, and the rings are ordered by them. Members whose hashes
+ * collide on a ring are ordered by their address, so that every member builds the same rings.
+ *
+ * Mutations are applied to K sorted maps under a write lock. Queries are answered from an immutable
+ * {@link RingSnapshot} of those rings, which is published through a volatile reference and rebuilt
+ * once on the first query after a change. Ring queries therefore do not contend with each other.
  */
 @ThreadSafe
 final class MembershipView {
     private final int K;
     private static final LongHashFunction HASH_FUNCTION = LongHashFunction.xx(0);
     private final ReadWriteLock rwLock = new ReentrantReadWriteLock();
-    @GuardedBy("rwLock") private final Map<Integer, NavigableSet<Endpoint>> rings;
-    @GuardedBy("rwLock") private final Set<NodeId> identifiersSeen = new TreeSet<>(NodeIdComparator.INSTANCE);
-    @GuardedBy("rwLock") private long currentConfigurationId = -1;
-    @GuardedBy("rwLock") private Configuration currentConfiguration;
-    @GuardedBy("rwLock") private boolean shouldUpdateConfigurationId = true;
+    private final List<ToLongFunction<Endpoint>> ringHashFunctions;
+    @GuardedBy("rwLock") private final Map<Integer, NavigableMap<RingPosition, Endpoint>> rings;
+    @GuardedBy("rwLock") private final Map<Endpoint, long[]> ringHashes = new HashMap<>();
+    @GuardedBy("rwLock") private final NodeIdSet identifiersSeen = new NodeIdSet();
+    @GuardedBy("rwLock") private long identifiersFingerprint = 0;
+    @GuardedBy("rwLock") private long endpointsFingerprint = 0;
+    private volatile long currentConfigurationId;
+    @Nullable private volatile Configuration currentConfiguration = null;
+    @Nullable private volatile RingSnapshot ringSnapshot = null;
 
     MembershipView(final int K) {
-        assert K > 0;
-        this.K = K;
-        this.rings = new HashMap<>(K);
-        for (int k = 0; k < K; k++) {
-            this.rings.put(k, new TreeSet<>(Utils.AddressComparator.getComparatorWithSeed(k)));
-        }
-        this.currentConfiguration = new Configuration(identifiersSeen, rings.get(0));
+        this(K, Collections.emptyList(), Collections.emptyList());
     }
 
     /**
@@ -67,15 +75,41 @@ final class MembershipView {
      */
     MembershipView(final int K, final Collection<NodeId> nodeIds,
                    final Collection<Endpoint> endpoints) {
+        this(K, nodeIds, endpoints, defaultRingHashFunctions(K));
+    }
+
+    /**
+     * Bootstraps a membership view whose rings are ordered by {@code ringHashFunctions}, one per ring.
+     */
+    @VisibleForTesting
+    MembershipView(final int K, final Collection<NodeId> nodeIds, final Collection<Endpoint> endpoints,
+                   final List<ToLongFunction<Endpoint>> ringHashFunctions) {
         assert K > 0;
+        assert ringHashFunctions.size() == K;
         this.K = K;
         this.rings = new HashMap<>(K);
         for (int k = 0; k < K; k++) {
-            this.rings.put(k, new TreeSet<>(Utils.AddressComparator.getComparatorWithSeed(k)));
-            this.rings.get(k).addAll(endpoints);
+            this.rings.put(k, new TreeMap<>());
+        }
+        this.ringHashFunctions = ImmutableList.copyOf(ringHashFunctions);
+        for (final Endpoint endpoint: endpoints) {
+            if (!ringHashes.containsKey(endpoint)) {
+                addToRings(endpoint);
+            }
+        }
+        for (final NodeId nodeId: identifiersSeen.addAll(nodeIds)) {
+            identifiersFingerprint += Configuration.hashIdentifier(nodeId);
+        }
+        this.currentConfigurationId = Configuration.combineFingerprints(identifiersFingerprint,
+                                                                        endpointsFingerprint);
+    }
+
+    private static List<ToLongFunction<Endpoint>> defaultRingHashFunctions(final int K) {
+        final ImmutableList.Builder<ToLongFunction<Endpoint>> hashFunctions = ImmutableList.builder();
+        for (int k = 0; k < K; k++) {
+            hashFunctions.add(Utils.AddressComparator.getComparatorWithSeed(k)::hash);
         }
-        this.identifiersSeen.addAll(nodeIds);
-        this.currentConfiguration = new Configuration(identifiersSeen, rings.get(0));
+        return hashFunctions.build();
     }
 
     /**
@@ -88,12 +122,12 @@ final class MembershipView {
      *         SAFE_TO_JOIN otherwise.
      */
     JoinStatusCode isSafeToJoin(final Endpoint node, final NodeId uuid) {
+        if (getRingSnapshot().contains(node)) {
+            return JoinStatusCode.HOSTNAME_ALREADY_IN_RING;
+        }
+
         rwLock.readLock().lock();
         try {
-            if (rings.get(0).contains(node)) {
-                return JoinStatusCode.HOSTNAME_ALREADY_IN_RING;
-            }
-
             if (identifiersSeen.contains(uuid)) {
                 return JoinStatusCode.UUID_ALREADY_IN_RING;
             }
@@ -113,26 +147,7 @@ final class MembershipView {
     void ringAdd(final Endpoint node, final NodeId nodeId) {
         Objects.requireNonNull(node);
         Objects.requireNonNull(nodeId);
-
-        if (isIdentifierPresent(nodeId)) {
-            throw new UUIDAlreadySeenException(node, nodeId);
-        }
-
-        rwLock.writeLock().lock();
-        try {
-            if (rings.get(0).contains(node)) {
-                throw new NodeAlreadyInRingException(node);
-            }
-
-            for (int k = 0; k < K; k++) {
-                rings.get(k).add(node);
-            }
-
-            identifiersSeen.add(nodeId);
-            shouldUpdateConfigurationId = true;
-        } finally {
-            rwLock.writeLock().unlock();
-        }
+        applyProposal(Collections.singletonMap(node, nodeId), Collections.emptySet());
     }
 
     /**
@@ -142,23 +157,92 @@ final class MembershipView {
      */
     void ringDelete(final Endpoint node) {
         Objects.requireNonNull(node);
+        applyProposal(Collections.emptyMap(), Collections.singleton(node));
+    }
+
+    /**
+     * Applies a view change as a single batch. The batch is validated as a whole before any ring is modified,
+     * and the new configuration is published atomically once all additions and removals have been applied.
+     *
+     * @param nodesToAdd the nodes to be added along with their logical identifiers
+     * @param nodesToRemove the nodes to be removed
+     * @throws UUIDAlreadySeenException if an identifier in {@code nodesToAdd} has been seen before
+     * @throws NodeAlreadyInRingException if a node in {@code nodesToAdd} is already in the ring
+     * @throws NodeNotInRingException if a node in {@code nodesToRemove} is not in the ring
+     */
+    void applyProposal(final Map<Endpoint, NodeId> nodesToAdd, final Set<Endpoint> nodesToRemove) {
+        Objects.requireNonNull(nodesToAdd);
+        Objects.requireNonNull(nodesToRemove);
         rwLock.writeLock().lock();
         try {
-
-            if (!rings.get(0).contains(node)) {
-                throw new NodeNotInRingException(node);
+            final Set<NodeId> newIdentifiers = new HashSet<>(nodesToAdd.size() * 2);
+            for (final Map.Entry<Endpoint, NodeId> entry: nodesToAdd.entrySet()) {
+                if (identifiersSeen.contains(entry.getValue()) || !newIdentifiers.add(entry.getValue())) {
+                    throw new UUIDAlreadySeenException(entry.getKey(), entry.getValue());
+                }
+                if (ringHashes.containsKey(entry.getKey())) {
+                    throw new NodeAlreadyInRingException(entry.getKey());
+                }
             }
-
-            for (int k = 0; k < K; k++) {
-                rings.get(k).remove(node);
+            for (final Endpoint node: nodesToRemove) {
+                if (!ringHashes.containsKey(node)) {
+                    throw new NodeNotInRingException(node);
+                }
             }
 
-            shouldUpdateConfigurationId = true;
+            for (final Endpoint node: nodesToRemove) {
+                final long[] hashes = ringHashes.remove(node);
+                for (int k = 0; k < K; k++) {
+                    rings.get(k).remove(new RingPosition(hashes[k], node));
+                }
+                endpointsFingerprint -= Configuration.hashEndpoint(node);
+            }
+            for (final Map.Entry<Endpoint, NodeId> entry: nodesToAdd.entrySet()) {
+                addToRings(entry.getKey());
+                identifiersFingerprint += Configuration.hashIdentifier(entry.getValue());
+            }
+            identifiersSeen.addAll(nodesToAdd.values());
+            onMembershipChanged();
         } finally {
             rwLock.writeLock().unlock();
         }
     }
 
+    /**
+     * Computes the position of {@code node} on each of the K rings and inserts it.
+     */
+    @GuardedBy("rwLock")
+    private void addToRings(final Endpoint node) {
+        final long[] hashes = computeRingHashes(node);
+        for (int k = 0; k < K; k++) {
+            rings.get(k).put(new RingPosition(hashes[k], node), node);
+        }
+        ringHashes.put(node, hashes);
+        endpointsFingerprint += Configuration.hashEndpoint(node);
+    }
+
+    /**
+     * Publishes the configuration identifier for the updated rings and identifiers, and invalidates
+     * the ring snapshot and materialized configuration of the previous one.
+     */
+    @GuardedBy("rwLock")
+    private void onMembershipChanged() {
+        currentConfigurationId = Configuration.combineFingerprints(identifiersFingerprint, endpointsFingerprint);
+        currentConfiguration = null;
+        ringSnapshot = null;
+    }
+
+    /**
+     * Hashes {@code node} once per ring seed. The k'th entry orders the node on the k'th ring.
+     */
+    private long[] computeRingHashes(final Endpoint node) {
+        final long[] hashes = new long[K];
+        for (int k = 0; k < K; k++) {
+            hashes[k] = ringHashFunctions.get(k).applyAsLong(node);
+        }
+        return hashes;
+    }
+
     /**
      * Returns the set of monitors for {@code node}
 
@@ -168,32 +252,7 @@ final class MembershipView {
      */
     List<Endpoint> getMonitorsOf(final Endpoint node) {
         Objects.requireNonNull(node);
-        rwLock.readLock().lock();
-        try {
-            if (!rings.get(0).contains(node)) {
-                throw new NodeNotInRingException(node);
-            }
-
-            if (rings.get(0).size() <= 1) {
-                return Collections.emptyList();
-            }
-
-            final List<Endpoint> monitors = new ArrayList<>();
-
-            for (int k = 0; k < K; k++) {
-                final NavigableSet<Endpoint> list = rings.get(k);
-                final Endpoint successor = list.higher(node);
-                if (successor == null) {
-                    monitors.add(list.first());
-                }
-                else {
-                    monitors.add(successor);
-                }
-            }
-            return monitors;
-        } finally {
-            rwLock.readLock().unlock();
-        }
+        return getRingSnapshot().monitoringEntryOf(node).monitors;
     }
 
     /**
@@ -205,19 +264,23 @@ final class MembershipView {
      */
     List<Endpoint> getMonitoreesOf(final Endpoint node) {
         Objects.requireNonNull(node);
-        rwLock.readLock().lock();
-        try {
-            if (!rings.get(0).contains(node)) {
-                throw new NodeNotInRingException(node);
-            }
+        return getRingSnapshot().monitoringEntryOf(node).monitorees;
+    }
 
-            if (rings.get(0).size() <= 1) {
-                return Collections.emptyList();
-            }
-            return getPredecessorsOf(node);
-        } finally {
-            rwLock.readLock().unlock();
-        }
+    /**
+     * Returns the neighbors of {@code node} on each of the K rings that a broadcast relayed over the rings
+     * starts from. For a member, these are its successors, i.e., its monitors. A node outside the membership
+     * has no successors, and gets the members that would monitor it if it joined.
+     *
+     * @param node input node
+     * @return one neighbor per ring, ordered by ring. Empty list if the membership is empty or only
+     *         contains {@code node}.
+     */
+    List<Endpoint> getRingSuccessorsOf(final Endpoint node) {
+        Objects.requireNonNull(node);
+        final RingSnapshot snapshot = getRingSnapshot();
+        return snapshot.contains(node) ? snapshot.monitoringEntryOf(node).monitors
+                                       : getExpectedMonitorsOf(snapshot, node);
     }
 
     /**
@@ -230,34 +293,59 @@ final class MembershipView {
      */
     List<Endpoint> getExpectedMonitorsOf(final Endpoint node) {
         Objects.requireNonNull(node);
+        return getExpectedMonitorsOf(getRingSnapshot(), node);
+    }
+
+    /**
+     * Answers a PreJoin request against a single configuration: whether {@code node} is safe to join,
+     * the identifier and size of the configuration, and the expected monitors of {@code node}, which are
+     * only computed if the status is SAFE_TO_JOIN or HOSTNAME_ALREADY_IN_RING.
+     *
+     * @param node the joining node
+     * @param uuid the joining node's identifier
+     * @return the outcome of the check
+     */
+    PreJoinCheck checkPreJoin(final Endpoint node, final NodeId uuid) {
+        Objects.requireNonNull(node);
+        Objects.requireNonNull(uuid);
         rwLock.readLock().lock();
         try {
-            if (rings.get(0).isEmpty()) {
-                return Collections.emptyList();
+            final RingSnapshot snapshot = getRingSnapshot();
+            final JoinStatusCode statusCode;
+            if (snapshot.contains(node)) {
+                statusCode = JoinStatusCode.HOSTNAME_ALREADY_IN_RING;
+            } else if (identifiersSeen.contains(uuid)) {
+                statusCode = JoinStatusCode.UUID_ALREADY_IN_RING;
+            } else {
+                statusCode = JoinStatusCode.SAFE_TO_JOIN;
             }
-            return getPredecessorsOf(node);
+            final List<Endpoint> monitors = statusCode == JoinStatusCode.UUID_ALREADY_IN_RING
+                                            ? Collections.emptyList()
+                                            : getExpectedMonitorsOf(snapshot, node);
+            return new PreJoinCheck(statusCode, currentConfigurationId, snapshot.size(), monitors);
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
-    /**
-     * Used by getExpectedMonitorsOf() and getMonitorsOf().
-     */
-    private List<Endpoint> getPredecessorsOf(final Endpoint node) {
-        final List<Endpoint> monitorees = new ArrayList<>();
+    private List<Endpoint> getExpectedMonitorsOf(final RingSnapshot snapshot, final Endpoint node) {
+        final int size = snapshot.size();
+        if (size == 0) {
+            return Collections.emptyList();
+        }
 
+        if (size > 1 && snapshot.contains(node)) {
+            // A member's expected monitors are its predecessors, i.e., its monitorees
+            return snapshot.monitoringEntryOf(node).monitorees;
+        }
+
+        final int[] positions = snapshot.insertionPointsOf(node, computeRingHashes(node));
+        final List<Endpoint> monitors = new ArrayList<>(K);
         for (int k = 0; k < K; k++) {
-            final NavigableSet<Endpoint> list = rings.get(k);
-            final Endpoint predecessor = list.lower(node);
-            if (predecessor == null) {
-                monitorees.add(list.last());
-            }
-            else {
-                monitorees.add(predecessor);
-            }
+            // The predecessor is the element right before node's insertion point on ring k
+            monitors.add(snapshot.get(k, (positions[k] - 1 + size) % size));
         }
-        return monitorees;
+        return monitors;
     }
 
     /**
@@ -267,12 +355,7 @@ final class MembershipView {
      * @return True if the node is present in the membership view and false otherwise.
      */
     boolean isHostPresent(final Endpoint address) {
-        rwLock.readLock().lock();
-        try {
-            return rings.get(0).contains(address);
-        } finally {
-            rwLock.readLock().unlock();
-        }
+        return getRingSnapshot().contains(address);
     }
 
     /**
@@ -292,22 +375,13 @@ final class MembershipView {
 
     /**
      * Get the current identifier of the configuration. Computed based on the
-     * set of nodes in the view as well as the identifiers seen so far.
+     * set of nodes in the view as well as the identifiers seen so far, and maintained
+     * incrementally as nodes are added and removed.
      *
      * @return the current configuration identifier.
      */
     long getCurrentConfigurationId() {
-        rwLock.readLock().lock();
-        try {
-            if (shouldUpdateConfigurationId) {
-                updateCurrentConfigurationId();
-                shouldUpdateConfigurationId = false;
-            }
-            return currentConfigurationId;
-        }
-        finally {
-            rwLock.readLock().unlock();
-        }
+        return currentConfigurationId;
     }
 
     /**
@@ -317,13 +391,8 @@ final class MembershipView {
      * @return the list of endpoints in the k'th ring.
      */
     List<Endpoint> getRing(final int k) {
-        rwLock.readLock().lock();
-        try {
-            assert k >= 0;
-            return ImmutableList.copyOf(rings.get(k));
-        } finally {
-            rwLock.readLock().unlock();
-        }
+        assert k >= 0;
+        return getRingSnapshot().getRing(k);
     }
 
     /**
@@ -334,26 +403,14 @@ final class MembershipView {
      * @return the indexes k such that {@code monitoree} is a successor of {@code monitoree} on ring[k].
      */
     List<Integer> getRingNumbers(final Endpoint monitor, final Endpoint monitoree) {
-        rwLock.readLock().lock();
-        try {
-            // TODO: do this in one scan
-            final List<Endpoint> monitorees = getMonitoreesOf(monitor);
-            if (monitorees.isEmpty()) {
-                return Collections.emptyList();
+        final List<Endpoint> monitorees = getMonitoreesOf(monitor);
+        final List<Integer> ringIndexes = new ArrayList<>(1);
+        for (int ringNumber = 0; ringNumber < monitorees.size(); ringNumber++) {
+            if (monitorees.get(ringNumber).equals(monitoree)) {
+                ringIndexes.add(ringNumber);
             }
-
-            final List<Integer> ringIndexes = new ArrayList<>();
-            int ringNumber = 0;
-            for (final Endpoint node: monitorees) {
-                if (node.equals(monitoree)) {
-                    ringIndexes.add(ringNumber);
-                }
-                ringNumber++;
-            }
-            return ringIndexes;
-        } finally {
-            rwLock.readLock().unlock();
         }
+        return ringIndexes;
     }
 
     /**
@@ -362,23 +419,33 @@ final class MembershipView {
      * @return the number of nodes in the membership.
      */
     int getMembershipSize() {
+        return getRingSnapshot().size();
+    }
+
+    /**
+     * Returns the snapshot of the rings for the current configuration, building it if a
+     * ringAdd() or ringDelete() has invalidated the previous one.
+     */
+    private RingSnapshot getRingSnapshot() {
+        final RingSnapshot current = ringSnapshot;
+        if (current != null) {
+            return current;
+        }
         rwLock.readLock().lock();
         try {
-            return rings.get(0).size();
+            // Writers are excluded while we hold the read lock, so concurrent readers that race
+            // here all build identical snapshots.
+            RingSnapshot snapshot = ringSnapshot;
+            if (snapshot == null) {
+                snapshot = new RingSnapshot(rings, K);
+                ringSnapshot = snapshot;
+            }
+            return snapshot;
         } finally {
             rwLock.readLock().unlock();
         }
     }
 
-    /**
-     * XXX: May not be stable across processes. Verify.
-     */
-    @GuardedBy("rwLock")
-    private void updateCurrentConfigurationId() {
-        currentConfiguration = new Configuration(identifiersSeen, rings.get(0));
-        currentConfigurationId = currentConfiguration.getConfigurationId();
-    }
-
     /**
      * Get a Settings object that contains the list of nodes in the membership view
      * as well as the identifiers seen so far. These two lists suffice to bootstrap an
@@ -387,44 +454,186 @@ final class MembershipView {
      * @return a {@code Settings} object.
      */
     Configuration getConfiguration() {
+        final Configuration current = currentConfiguration;
+        if (current != null) {
+            return current;
+        }
         rwLock.readLock().lock();
         try {
-            if (shouldUpdateConfigurationId) {
-                updateCurrentConfigurationId();
-                shouldUpdateConfigurationId = false;
+            // The lists are only materialized when a joiner needs them, at most once per configuration.
+            Configuration configuration = currentConfiguration;
+            if (configuration == null) {
+                configuration = new Configuration(identifiersSeen.toList(), rings.get(0).values(),
+                                                  currentConfigurationId);
+                currentConfiguration = configuration;
             }
-            return currentConfiguration;
+            return configuration;
         }
         finally {
             rwLock.readLock().unlock();
         }
     }
 
-    private static final class NodeIdComparator implements Comparator<NodeId>, Serializable {
-        private static final long serialVersionUID = -4891729395L;
-        private static final NodeIdComparator INSTANCE = new NodeIdComparator();
+    /**
+     * An immutable copy of the K rings of a single configuration. Each ring is stored as a sorted
+     * array of endpoints alongside the array of their ring hashes. The monitors and monitorees of
+     * every member are tabulated when the snapshot is built, so that monitoring queries are map
+     * lookups followed by array reads.
+     */
+    @Immutable
+    private static final class RingSnapshot {
+        private final List<ImmutableList<Endpoint>> rings;
+        private final List<long[]> keys;
+        private final Map<Endpoint, MonitoringEntry> monitoringTable;
+
+        RingSnapshot(final Map<Integer, NavigableMap<RingPosition, Endpoint>> source, final int K) {
+            final ImmutableList.Builder<ImmutableList<Endpoint>> ringsBuilder = ImmutableList.builder();
+            final ImmutableList.Builder<long[]> keysBuilder = ImmutableList.builder();
+            final int size = source.get(0).size();
+            final Map<Endpoint, Endpoint[]> monitors = new HashMap<>(size * 2);
+            final Map<Endpoint, Endpoint[]> monitorees = new HashMap<>(size * 2);
+            for (int k = 0; k < K; k++) {
+                final NavigableMap<RingPosition, Endpoint> ring = source.get(k);
+                final ImmutableList<Endpoint> sorted = ImmutableList.copyOf(ring.values());
+                final long[] ringKeys = new long[ring.size()];
+                int index = 0;
+                for (final RingPosition position: ring.keySet()) {
+                    ringKeys[index] = position.hash;
+                    if (size > 1) {
+                        final Endpoint node = sorted.get(index);
+                        monitors.computeIfAbsent(node, e -> new Endpoint[K])[k] = sorted.get((index + 1) % size);
+                        monitorees.computeIfAbsent(node, e -> new Endpoint[K])[k] =
+                                sorted.get((index - 1 + size) % size);
+                    }
+                    index++;
+                }
+                ringsBuilder.add(sorted);
+                keysBuilder.add(ringKeys);
+            }
+            this.rings = ringsBuilder.build();
+            this.keys = keysBuilder.build();
+            this.monitoringTable = new HashMap<>(size * 2);
+            for (final Endpoint node: rings.get(0)) {
+                monitoringTable.put(node, size > 1 ? new MonitoringEntry(monitors.get(node), monitorees.get(node))
+                                                   : MonitoringEntry.EMPTY);
+            }
+        }
+
+        int size() {
+            return rings.get(0).size();
+        }
 
-        private NodeIdComparator() {
+        boolean contains(final Endpoint node) {
+            return monitoringTable.containsKey(node);
         }
 
-        @Override
-        public int compare(final NodeId o1, final NodeId o2) {
-            // First, compare high bits
-            if (o1.getHigh() < o2.getHigh()) {
-                return -1;
-            }
-            if (o1.getHigh() > o2.getHigh()) {
-                return 1;
+        ImmutableList<Endpoint> getRing(final int k) {
+            return rings.get(k);
+        }
+
+        Endpoint get(final int k, final int index) {
+            return rings.get(k).get(index);
+        }
+
+        /**
+         * The monitors and monitorees of {@code node} on each of the K rings.
+         *
+         * @throws NodeNotInRingException thrown if {@code node} is not a member
+         */
+        MonitoringEntry monitoringEntryOf(final Endpoint node) {
+            final MonitoringEntry entry = monitoringTable.get(node);
+            if (entry == null) {
+                throw new NodeNotInRingException(node);
             }
-            // High bits are equal, so compare low bits
-            if (o1.getLow() < o2.getLow()) {
-                return -1;
+            return entry;
+        }
+
+        /**
+         * For each ring k, the index at which {@code node}, with ring hashes {@code hashes}, is or would
+         * be placed on ring k.
+         */
+        int[] insertionPointsOf(final Endpoint node, final long[] hashes) {
+            final int[] insertionPoints = new int[hashes.length];
+            for (int k = 0; k < hashes.length; k++) {
+                final long[] ringKeys = keys.get(k);
+                final ImmutableList<Endpoint> ring = rings.get(k);
+                int lo = 0;
+                int hi = ringKeys.length;
+                while (lo < hi) {
+                    final int mid = (lo + hi) >>> 1;
+                    if (RingPosition.compare(ringKeys[mid], ring.get(mid), hashes[k], node) < 0) {
+                        lo = mid + 1;
+                    } else {
+                        hi = mid;
+                    }
+                }
+                insertionPoints[k] = lo;
             }
-            if (o1.getLow() > o2.getLow()) {
-                return 1;
+            return insertionPoints;
+        }
+    }
+
+    /**
+     * The position of a node on one ring. Nodes are ordered by their ring hash, and nodes whose hashes collide
+     * are ordered by hostname and port. A collision therefore neither drops a node from the ring nor makes the
+     * order depend on the order in which the nodes joined.
+     */
+    @Immutable
+    private static final class RingPosition implements Comparable<RingPosition> {
+        private final long hash;
+        private final Endpoint node;
+
+        RingPosition(final long hash, final Endpoint node) {
+            this.hash = hash;
+            this.node = node;
+        }
+
+        @Override
+        public int compareTo(final RingPosition other) {
+            return compare(hash, node, other.hash, other.node);
+        }
+
+        static int compare(final long hash1, final Endpoint node1, final long hash2, final Endpoint node2) {
+            final int cmp = Long.compare(hash1, hash2);
+            if (cmp != 0) {
+                return cmp;
             }
-            // High and low bits are equal
-            return 0;
+            final int hostnameCmp = node1.getHostname().compareTo(node2.getHostname());
+            return hostnameCmp != 0 ? hostnameCmp : Integer.compare(node1.getPort(), node2.getPort());
+        }
+    }
+
+    /**
+     * The K monitors and K monitorees of a member, indexed by ring number.
+     */
+    @Immutable
+    private static final class MonitoringEntry {
+        private static final MonitoringEntry EMPTY = new MonitoringEntry(new Endpoint[0], new Endpoint[0]);
+        private final ImmutableList<Endpoint> monitors;
+        private final ImmutableList<Endpoint> monitorees;
+
+        private MonitoringEntry(final Endpoint[] monitors, final Endpoint[] monitorees) {
+            this.monitors = ImmutableList.copyOf(monitors);
+            this.monitorees = ImmutableList.copyOf(monitorees);
+        }
+    }
+
+    /**
+     * The outcome of checkPreJoin(), taken from a single configuration.
+     */
+    @Immutable
+    static final class PreJoinCheck {
+        final JoinStatusCode statusCode;
+        final long configurationId;
+        final int membershipSize;
+        final List<Endpoint> expectedMonitors;
+
+        private PreJoinCheck(final JoinStatusCode statusCode, final long configurationId, final int membershipSize,
+                             final List<Endpoint> expectedMonitors) {
+            this.statusCode = statusCode;
+            this.configurationId = configurationId;
+            this.membershipSize = membershipSize;
+            this.expectedMonitors = expectedMonitors;
         }
     }
 
@@ -455,10 +664,17 @@ final class MembershipView {
     static class Configuration {
         final List<NodeId> nodeIds;
         final List<Endpoint> endpoints;
+        private final long configurationId;
 
-        public Configuration(final Set<NodeId> nodeIds, final Set<Endpoint> endpoints) {
+        public Configuration(final Collection<NodeId> nodeIds, final Collection<Endpoint> endpoints) {
+            this(nodeIds, endpoints, getConfigurationId(nodeIds, endpoints));
+        }
+
+        Configuration(final Collection<NodeId> nodeIds, final Collection<Endpoint> endpoints,
+                      final long configurationId) {
             this.nodeIds = ImmutableList.copyOf(nodeIds);
             this.endpoints = ImmutableList.copyOf(endpoints);
+            this.configurationId = configurationId;
         }
 
         /**
@@ -467,22 +683,46 @@ final class MembershipView {
          * @return a configuration identifier.
          */
         public long getConfigurationId() {
-            return getConfigurationId(this.nodeIds, this.endpoints);
+            return configurationId;
         }
 
+        /**
+         * Computes the configuration ID from scratch. The identifier does not depend on the order of
+         * {@code identifiers} or {@code endpoints}: it combines the sums of the per-element hashes, which
+         * is what allows MembershipView to maintain it in O(1) per addition or removal.
+         */
         static long getConfigurationId(final Collection<NodeId> identifiers,
                                        final Collection<Endpoint> endpoints) {
-            long hash = 1;
+            long identifiersFingerprint = 0;
             for (final NodeId id: identifiers) {
-                hash = hash * 37 + HASH_FUNCTION.hashLong(id.getHigh());
-                hash = hash * 37 + HASH_FUNCTION.hashLong(id.getLow());
+                identifiersFingerprint += hashIdentifier(id);
             }
+            long endpointsFingerprint = 0;
             for (final Endpoint endpoint : endpoints) {
-                hash = hash * 37 + HASH_FUNCTION.hashChars(endpoint.getHostname());
-                hash = hash * 37 + HASH_FUNCTION.hashInt(endpoint.getPort());
+                endpointsFingerprint += hashEndpoint(endpoint);
             }
+            return combineFingerprints(identifiersFingerprint, endpointsFingerprint);
+        }
+
+        static long combineFingerprints(final long identifiersFingerprint, final long endpointsFingerprint) {
+            long hash = 1;
+            hash = hash * 37 + identifiersFingerprint;
+            hash = hash * 37 + endpointsFingerprint;
             return hash;
         }
 
+        /**
+         * The outer hashLong() mixes the fields so that summing element hashes does not cancel out
+         * swapped fields (e.g., {A:1, B:2} and {A:2, B:1}).
+         */
+        static long hashIdentifier(final NodeId id) {
+            return HASH_FUNCTION.hashLong(HASH_FUNCTION.hashLong(id.getHigh()) * 37
+                                          + HASH_FUNCTION.hashLong(id.getLow()));
+        }
+
+        static long hashEndpoint(final Endpoint endpoint) {
+            return HASH_FUNCTION.hashLong(HASH_FUNCTION.hashChars(endpoint.getHostname()) * 37
+                                          + HASH_FUNCTION.hashInt(endpoint.getPort()));
+        }
     }
 }
\ No newline at end of file
@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid;
+
+import com.vrg.rapid.pb.NodeId;
+
+import javax.annotation.concurrent.NotThreadSafe;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A sorted set of node identifiers backed by a single primitive array of (high, low) pairs.
+ *
+ * The set of identifiers seen by a MembershipView never shrinks, so this avoids keeping a boxed
+ * NodeId and a tree entry around for every node that ever joined. Lookups are binary searches,
+ * and the contents can be materialized in bulk, in sorted order, when a configuration is sent out.
+ */
+@NotThreadSafe
+final class NodeIdSet {
+    private static final int INITIAL_CAPACITY = 16;
+    private static final Comparator<NodeId> NODE_ID_ORDER = Comparator.comparingLong(NodeId::getHigh)
+                                                                      .thenComparingLong(NodeId::getLow);
+    private long[] pairs = new long[2 * INITIAL_CAPACITY];
+    private int size = 0;
+
+    int size() {
+        return size;
+    }
+
+    boolean contains(final NodeId nodeId) {
+        return indexOf(nodeId.getHigh(), nodeId.getLow()) >= 0;
+    }
+
+    /**
+     * Adds several identifiers at once. The new identifiers are sorted once and merged into the backing array
+     * in place, starting from the tail, instead of inserting them one at a time. The array grows by doubling,
+     * so a view change only allocates when the set outgrows its capacity.
+     *
+     * @return the identifiers that were not already present, in sorted order and without duplicates
+     */
+    List<NodeId> addAll(final Collection<NodeId> nodeIds) {
+        if (nodeIds.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<NodeId> sorted = new ArrayList<>(nodeIds);
+        sorted.sort(NODE_ID_ORDER);
+        final List<NodeId> added = new ArrayList<>(sorted.size());
+        for (final NodeId nodeId: sorted) {
+            final boolean repeated = !added.isEmpty() && NODE_ID_ORDER.compare(added.get(added.size() - 1),
+                                                                                 nodeId) == 0;
+            if (!repeated && !contains(nodeId)) {
+                added.add(nodeId);
+            }
+        }
+        if (added.isEmpty()) {
+            return added;
+        }
+        ensureCapacity(size + added.size());
+        int in = size - 1;
+        int out = size + added.size() - 1;
+        for (int i = added.size() - 1; i >= 0; i--) {
+            final long high = added.get(i).getHigh();
+            final long low = added.get(i).getLow();
+            while (in >= 0 && compare(pairs[2 * in], pairs[2 * in + 1], high, low) > 0) {
+                pairs[2 * out] = pairs[2 * in];
+                pairs[2 * out + 1] = pairs[2 * in + 1];
+                in--;
+                out--;
+            }
+            pairs[2 * out] = high;
+            pairs[2 * out + 1] = low;
+            out--;
+        }
+        size += added.size();
+        return added;
+    }
+
+    /**
+     * Materializes the identifiers in sorted order, comparing the high bits first.
+     */
+    List<NodeId> toList() {
+        final List<NodeId> nodeIds = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            nodeIds.add(NodeId.newBuilder().setHigh(pairs[2 * i]).setLow(pairs[2 * i + 1]).build());
+        }
+        return nodeIds;
+    }
+
+    /**
+     * Binary search over the (high, low) pairs.
+     *
+     * @return the index of the identifier if present, otherwise (-(insertion point) - 1)
+     */
+    private int indexOf(final long high, final long low) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int cmp = compare(pairs[2 * mid], pairs[2 * mid + 1], high, low);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(lo + 1);
+    }
+
+    private void ensureCapacity(final int capacity) {
+        int newCapacity = pairs.length / 2;
+        while (newCapacity < capacity) {
+            newCapacity *= 2;
+        }
+        if (newCapacity > pairs.length / 2) {
+            pairs = Arrays.copyOf(pairs, 2 * newCapacity);
+        }
+    }
+
+    private static int compare(final long high1, final long low1, final long high2, final long low2) {
+        final int cmp = Long.compare(high1, high2);
+        return cmp != 0 ? cmp : Long.compare(low1, low2);
+    }
+}
@@ -5,13 +5,32 @@ import com.vrg.rapid.messaging.impl.GrpcClient;
 /**
  * Holds configuration parameters for different components of a Rapid instance.
  */
-public final class Settings implements GrpcClient.ISettings, MembershipService.ISettings {
+public final class Settings implements GrpcClient.ISettings, MembershipService.ISettings, SharedResources.ISettings {
     private boolean useInProcessTransport = GrpcClient.DEFAULT_GRPC_USE_IN_PROCESS_TRANSPORT;
     private int grpcTimeoutMs = GrpcClient.DEFAULT_GRPC_TIMEOUT_MS;
     private int grpcDefaultRetries = GrpcClient.DEFAULT_GRPC_DEFAULT_RETRIES;
     private int grpcJoinTimeoutMs = GrpcClient.DEFAULT_GRPC_JOIN_TIMEOUT;
     private int grpcProbeTimeoutMs = GrpcClient.DEFAULT_GRPC_PROBE_TIMEOUT;
+    private boolean useStreamingTransport = GrpcClient.DEFAULT_GRPC_USE_STREAMING_TRANSPORT;
+    private int grpcRetryBaseDelayMs = GrpcClient.DEFAULT_GRPC_RETRY_BASE_DELAY_MS;
+    private int grpcJoinRetryBaseDelayMs = GrpcClient.DEFAULT_GRPC_JOIN_RETRY_BASE_DELAY_MS;
+    private int grpcProbeRetryBaseDelayMs = GrpcClient.DEFAULT_GRPC_PROBE_RETRY_BASE_DELAY_MS;
+    private double grpcRetryBudgetRatio = GrpcClient.DEFAULT_GRPC_RETRY_BUDGET_RATIO;
+    private int grpcRetryBudgetBurst = GrpcClient.DEFAULT_GRPC_RETRY_BUDGET_BURST;
     private int failureDetectorIntervalInMs = MembershipService.DEFAULT_FAILURE_DETECTOR_INTERVAL_IN_MS;
+    private int batchingMaxMessages = MembershipService.DEFAULT_BATCHING_MAX_MESSAGES;
+    private int batchingMaxDelayInMs = MembershipService.DEFAULT_BATCHING_MAX_DELAY_IN_MS;
+    private int batchingIdleGapInMs = MembershipService.DEFAULT_BATCHING_IDLE_GAP_IN_MS;
+    private boolean useConcurrentProtocolExecution = MembershipService.DEFAULT_USE_CONCURRENT_PROTOCOL_EXECUTION;
+    private int serverThreads = SharedResources.DEFAULT_THREADS;
+    private int clientThreads = SharedResources.DEFAULT_THREADS;
+    private int backgroundThreads = SharedResources.DEFAULT_THREADS;
+    private int eventLoopThreads = SharedResources.DEFAULT_THREADS;
+    private int readOnlyProtocolThreads = SharedResources.DEFAULT_READ_ONLY_PROTOCOL_THREADS;
+    private int executorQueueCapacity = SharedResources.DEFAULT_EXECUTOR_QUEUE_CAPACITY;
+    private int threadPriority = SharedResources.DEFAULT_THREAD_PRIORITY;
+    private boolean useDirectExecutors = SharedResources.DEFAULT_USE_DIRECT_EXECUTORS;
+    private boolean useEpollTransport = SharedResources.DEFAULT_USE_EPOLL_TRANSPORT;
 
     public Settings() {
     }
@@ -64,6 +83,60 @@ public final class Settings implements GrpcClient.ISettings, MembershipService.I
         this.grpcProbeTimeoutMs = grpcProbeTimeoutMs;
     }
 
+    @Override
+    public boolean getUseStreamingTransport() {
+        return useStreamingTransport;
+    }
+
+    public void setUseStreamingTransport(final boolean useStreamingTransport) {
+        this.useStreamingTransport = useStreamingTransport;
+    }
+
+    @Override
+    public int getGrpcRetryBaseDelayMs() {
+        return grpcRetryBaseDelayMs;
+    }
+
+    public void setGrpcRetryBaseDelayMs(final int grpcRetryBaseDelayMs) {
+        this.grpcRetryBaseDelayMs = grpcRetryBaseDelayMs;
+    }
+
+    @Override
+    public int getGrpcJoinRetryBaseDelayMs() {
+        return grpcJoinRetryBaseDelayMs;
+    }
+
+    public void setGrpcJoinRetryBaseDelayMs(final int grpcJoinRetryBaseDelayMs) {
+        this.grpcJoinRetryBaseDelayMs = grpcJoinRetryBaseDelayMs;
+    }
+
+    @Override
+    public int getGrpcProbeRetryBaseDelayMs() {
+        return grpcProbeRetryBaseDelayMs;
+    }
+
+    public void setGrpcProbeRetryBaseDelayMs(final int grpcProbeRetryBaseDelayMs) {
+        this.grpcProbeRetryBaseDelayMs = grpcProbeRetryBaseDelayMs;
+    }
+
+    @Override
+    public double getGrpcRetryBudgetRatio() {
+        return grpcRetryBudgetRatio;
+    }
+
+    public void setGrpcRetryBudgetRatio(final double grpcRetryBudgetRatio) {
+        this.grpcRetryBudgetRatio = grpcRetryBudgetRatio;
+    }
+
+    @Override
+    public int getGrpcRetryBudgetBurst() {
+        return grpcRetryBudgetBurst;
+    }
+
+    public void setGrpcRetryBudgetBurst(final int grpcRetryBudgetBurst) {
+        this.grpcRetryBudgetBurst = grpcRetryBudgetBurst;
+    }
+
 
     /*
      * Settings from MembershipService.ISettings
@@ -76,4 +149,125 @@ public final class Settings implements GrpcClient.ISettings, MembershipService.I
     public void setFailureDetectorIntervalInMs(final int failureDetectorIntervalInMs) {
         this.failureDetectorIntervalInMs = failureDetectorIntervalInMs;
     }
+
+    @Override
+    public int getBatchingMaxMessages() {
+        return batchingMaxMessages;
+    }
+
+    public void setBatchingMaxMessages(final int batchingMaxMessages) {
+        this.batchingMaxMessages = batchingMaxMessages;
+    }
+
+    @Override
+    public int getBatchingMaxDelayInMs() {
+        return batchingMaxDelayInMs;
+    }
+
+    public void setBatchingMaxDelayInMs(final int batchingMaxDelayInMs) {
+        this.batchingMaxDelayInMs = batchingMaxDelayInMs;
+    }
+
+    @Override
+    public int getBatchingIdleGapInMs() {
+        return batchingIdleGapInMs;
+    }
+
+    public void setBatchingIdleGapInMs(final int batchingIdleGapInMs) {
+        this.batchingIdleGapInMs = batchingIdleGapInMs;
+    }
+
+    @Override
+    public boolean getUseConcurrentProtocolExecution() {
+        return useConcurrentProtocolExecution;
+    }
+
+    public void setUseConcurrentProtocolExecution(final boolean useConcurrentProtocolExecution) {
+        this.useConcurrentProtocolExecution = useConcurrentProtocolExecution;
+    }
+
+
+    /*
+     * Settings from SharedResources.ISettings
+     */
+    @Override
+    public int getServerThreads() {
+        return serverThreads;
+    }
+
+    public void setServerThreads(final int serverThreads) {
+        this.serverThreads = serverThreads;
+    }
+
+    @Override
+    public int getClientThreads() {
+        return clientThreads;
+    }
+
+    public void setClientThreads(final int clientThreads) {
+        this.clientThreads = clientThreads;
+    }
+
+    @Override
+    public int getBackgroundThreads() {
+        return backgroundThreads;
+    }
+
+    public void setBackgroundThreads(final int backgroundThreads) {
+        this.backgroundThreads = backgroundThreads;
+    }
+
+    @Override
+    public int getEventLoopThreads() {
+        return eventLoopThreads;
+    }
+
+    public void setEventLoopThreads(final int eventLoopThreads) {
+        this.eventLoopThreads = eventLoopThreads;
+    }
+
+    @Override
+    public int getReadOnlyProtocolThreads() {
+        return readOnlyProtocolThreads;
+    }
+
+    public void setReadOnlyProtocolThreads(final int readOnlyProtocolThreads) {
+        this.readOnlyProtocolThreads = readOnlyProtocolThreads;
+    }
+
+    @Override
+    public int getExecutorQueueCapacity() {
+        return executorQueueCapacity;
+    }
+
+    public void setExecutorQueueCapacity(final int executorQueueCapacity) {
+        this.executorQueueCapacity = executorQueueCapacity;
+    }
+
+    @Override
+    public int getThreadPriority() {
+        return threadPriority;
+    }
+
+    public void setThreadPriority(final int threadPriority) {
+        this.threadPriority = threadPriority;
+    }
+
+    @Override
+    public boolean getUseDirectExecutors() {
+        return useDirectExecutors;
+    }
+
+    public void setUseDirectExecutors(final boolean useDirectExecutors) {
+        this.useDirectExecutors = useDirectExecutors;
+    }
+
+    @Override
+    public boolean getUseEpollTransport() {
+        return useEpollTransport;
+    }
+
+    public void setUseEpollTransport(final boolean useEpollTransport) {
+        this.useEpollTransport = useEpollTransport;
+    }
 }
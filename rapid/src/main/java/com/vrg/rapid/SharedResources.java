@@ -13,10 +13,19 @@
 
 package com.vrg.rapid;
 
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.vrg.rapid.pb.Endpoint;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollEventLoopGroup;
+import io.netty.channel.epoll.EpollServerSocketChannel;
+import io.netty.channel.epoll.EpollSocketChannel;
 import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import io.netty.channel.socket.SocketChannel;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.channel.socket.nio.NioSocketChannel;
 import io.netty.util.concurrent.DefaultThreadFactory;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -30,42 +39,100 @@ import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Holds all executors and ELGs that are shared across a single instance of Rapid.
+ * Holds all executors and ELGs that are shared across a single instance of Rapid. A single SharedResources
+ * can also be handed to many Cluster instances in the same JVM (see Cluster.Builder.useSharedResources), in
+ * which case the number of threads no longer grows with the number of instances. The address only names
+ * the threads.
+ *
+ * The number of threads of the gRPC executors, the background executor, the read-only protocol executor and
+ * the ELG, the capacity of the executors' queues and the priority of all threads are configurable. A task
+ * submitted to a full queue runs on the submitting thread, which getCallerRunsCount() counts. With direct
+ * executors, gRPC runs its callbacks on the ELG threads instead of handing them off to the server and client
+ * executors. This only pays off because the MembershipService hands every message to its own executors right
+ * away.
+ *
+ * The ELG and the channels of GrpcServer and GrpcClient use Netty's native epoll transport if it is enabled,
+ * on the classpath and available on this platform, and NIO otherwise.
  */
 public class SharedResources {
     private static final Logger LOG = LoggerFactory.getLogger(SharedResources.class);
-    private static final int DEFAULT_THREADS = 1;
+    public static final int DEFAULT_THREADS = 1;
+    public static final int DEFAULT_READ_ONLY_PROTOCOL_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_EXECUTOR_QUEUE_CAPACITY = Integer.MAX_VALUE;
+    public static final int DEFAULT_THREAD_PRIORITY = Thread.NORM_PRIORITY;
+    public static final boolean DEFAULT_USE_DIRECT_EXECUTORS = false;
+    public static final boolean DEFAULT_USE_EPOLL_TRANSPORT = false;
     @Nullable private EventLoopGroup eventLoopGroup = null;
+    @Nullable private ExecutorService readOnlyProtocolExecutor = null;
     private final ExecutorService backgroundExecutor;
     private final ExecutorService serverExecutor;
     private final ExecutorService clientChannelExecutor;
     private final ExecutorService protocolExecutor;
     private final ScheduledExecutorService scheduledTasksExecutor;
     private final Endpoint address;
+    private final ISettings settings;
+    private final boolean useEpoll;
+    private final AtomicLong callerRunsCount = new AtomicLong(0);
 
     public SharedResources(final Endpoint address) {
+        this(address, new Settings());
+    }
+
+    public SharedResources(final Endpoint address, final ISettings settings) {
         this.address = address;
-        this.serverExecutor = newNamedThreadPool(DEFAULT_THREADS, "server-exec", address);
-        this.clientChannelExecutor = newNamedThreadPool(DEFAULT_THREADS, "client-exec", address);
-        this.backgroundExecutor = newNamedThreadPool(DEFAULT_THREADS, "bg", address);
+        this.settings = settings;
+        this.useEpoll = settings.getUseEpollTransport() && isEpollAvailable();
+        if (settings.getUseDirectExecutors()) {
+            this.serverExecutor = MoreExecutors.newDirectExecutorService();
+            this.clientChannelExecutor = MoreExecutors.newDirectExecutorService();
+        } else {
+            this.serverExecutor = newNamedThreadPool(settings.getServerThreads(), "server-exec", address);
+            this.clientChannelExecutor = newNamedThreadPool(settings.getClientThreads(), "client-exec", address);
+        }
+        this.backgroundExecutor = newNamedThreadPool(settings.getBackgroundThreads(), "bg", address);
         this.protocolExecutor = Executors.newSingleThreadExecutor(newNamedThreadFactory("protocol", address));
         this.scheduledTasksExecutor = Executors.newSingleThreadScheduledExecutor(
                                                     newNamedThreadFactory("msbg", address));
     }
 
+    /**
+     * Returns the number of tasks that the thread pools rejected, because their queue was full or they were
+     * shut down, and that therefore ran on the submitting thread.
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
     /**
      * The ELG used by GrpcClient and RpcServer
      */
     public synchronized EventLoopGroup getEventLoopGroup() {
         // Lazily initialized because this is not required for tests that use InProcessChannel/Server.
         if (eventLoopGroup == null) {
-            eventLoopGroup = new NioEventLoopGroup(DEFAULT_THREADS, newFastLocalThreadFactory("elg", address));
+            eventLoopGroup = useEpoll
+                    ? new EpollEventLoopGroup(settings.getEventLoopThreads(), newFastLocalThreadFactory("elg", address))
+                    : new NioEventLoopGroup(settings.getEventLoopThreads(), newFastLocalThreadFactory("elg", address));
         }
         return eventLoopGroup;
     }
 
+    /**
+     * The channel type of RpcServer, which matches the ELG
+     */
+    public Class<? extends ServerSocketChannel> getServerChannelType() {
+        return useEpoll ? EpollServerSocketChannel.class : NioServerSocketChannel.class;
+    }
+
+    /**
+     * The channel type of GrpcClient, which matches the ELG
+     */
+    public Class<? extends SocketChannel> getClientChannelType() {
+        return useEpoll ? EpollSocketChannel.class : NioSocketChannel.class;
+    }
+
     /**
      * Used by background tasks like retries in GrpcClient
      */
@@ -74,14 +141,14 @@ public class SharedResources {
     }
 
     /**
-     * The RpcServer application executor
+     * The RpcServer application executor. Runs tasks on the calling thread when direct executors are enabled.
      */
     public ExecutorService getServerExecutor() {
         return serverExecutor;
     }
 
     /**
-     * The GrpcClient application executor
+     * The GrpcClient application executor. Runs tasks on the calling thread when direct executors are enabled.
      */
     public ExecutorService getClientChannelExecutor() {
         return clientChannelExecutor;
@@ -94,6 +161,19 @@ public class SharedResources {
         return protocolExecutor;
     }
 
+    /**
+     * Executes the read-only parts of the protocol logic in MembershipService, such as PreJoin handling,
+     * when concurrent protocol execution is enabled. Unlike the protocol executor, this pool is multi-threaded.
+     */
+    public synchronized ExecutorService getReadOnlyProtocolExecutor() {
+        // Lazily initialized because this is only required when concurrent protocol execution is enabled.
+        if (readOnlyProtocolExecutor == null) {
+            readOnlyProtocolExecutor = newNamedThreadPool(settings.getReadOnlyProtocolThreads(), "protocol-ro",
+                                                          address);
+        }
+        return readOnlyProtocolExecutor;
+    }
+
     /**
      * Executes periodic background tasks in MembershipService.
      */
@@ -102,24 +182,46 @@ public class SharedResources {
     }
 
     /**
-     * Shuts down resources.
+     * Shuts down resources. Resources shared by several Cluster instances are shut down by their owner, after
+     * all of those instances.
      */
-    synchronized void shutdown() {
+    public synchronized void shutdown() {
         serverExecutor.shutdownNow();
         protocolExecutor.shutdownNow();
+        if (readOnlyProtocolExecutor != null) {
+            readOnlyProtocolExecutor.shutdownNow();
+        }
         clientChannelExecutor.shutdownNow();
         backgroundExecutor.shutdownNow();
+        scheduledTasksExecutor.shutdownNow();
         if (eventLoopGroup != null) {
             eventLoopGroup.shutdownGracefully().awaitUninterruptibly(0, TimeUnit.SECONDS);
         }
     }
 
+    private static boolean isEpollAvailable() {
+        final boolean isAvailable;
+        try {
+            isAvailable = Epoll.isAvailable();
+        } catch (final NoClassDefFoundError e) {
+            // netty-transport-native-epoll is an optional dependency
+            LOG.info("Native epoll transport is not on the classpath, using NIO instead");
+            return false;
+        }
+        if (!isAvailable) {
+            LOG.info("Native epoll transport is unavailable, using NIO instead: {}",
+                     String.valueOf(Epoll.unavailabilityCause()));
+            return false;
+        }
+        return true;
+    }
+
     /**
      * Executors and ELGs that interact with Netty benefit from FastThreadLocalThreads, and therefore
      * use Netty's DefaultThreadFactory.
      */
     private DefaultThreadFactory newFastLocalThreadFactory(final String poolName, final Endpoint address) {
-        return new DefaultThreadFactory(poolName + "-" + address, true);
+        return new DefaultThreadFactory(poolName + "-" + address, true, settings.getThreadPriority());
     }
 
     /**
@@ -130,28 +232,70 @@ public class SharedResources {
         return new ThreadFactoryBuilder()
                 .setNameFormat(namePrefix + "-%d")
                 .setDaemon(true)
+                .setPriority(settings.getThreadPriority())
                 .setUncaughtExceptionHandler(
                     (t, e) -> LOG.error("{} caught exception: {} {}", t.getName(), t, e)
                 ).build();
     }
 
     /**
-     * TPE with a rejected execution handler specified.
+     * TPE with a bounded queue and a rejected execution handler specified.
+     *
+     * Once the queue holds getExecutorQueueCapacity() tasks, further tasks run on the thread that submits them,
+     * so the pool pushes back on its producers instead of dropping work that gRPC or the protocol depend on.
+     * Producers include Netty event loop threads, which hand gRPC callbacks to the server and client executors,
+     * and the protocol thread, which hands work to the background executor. A task that runs on one of those
+     * threads stalls every other channel or protocol step served by it until the task is done. The default
+     * capacity is unbounded, so this only happens if a capacity is configured.
      */
     private ThreadPoolExecutor newNamedThreadPool(final int threads, final String poolName, final Endpoint address) {
         final ThreadPoolExecutor tpe = new ThreadPoolExecutor(threads, threads,
                 0L, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<>(),
+                new LinkedBlockingQueue<>(settings.getExecutorQueueCapacity()),
                 newNamedThreadFactory(poolName, address));
-        tpe.setRejectedExecutionHandler(new BackgroundExecutorRejectionHandler());
+        tpe.setRejectedExecutionHandler(new BackgroundExecutorRejectionHandler(callerRunsCount));
         return tpe;
     }
 
+    /**
+     * Runs rejected tasks on the submitting thread. See newNamedThreadPool() for what that thread may be.
+     */
     static class BackgroundExecutorRejectionHandler implements RejectedExecutionHandler {
+        private final AtomicLong callerRunsCount;
+
+        BackgroundExecutorRejectionHandler(final AtomicLong callerRunsCount) {
+            this.callerRunsCount = callerRunsCount;
+        }
+
         @Override
         public void rejectedExecution(final Runnable r, final ThreadPoolExecutor executor) {
-            LOG.info("Running a task submitted to the background executor after it was shutdown()");
+            callerRunsCount.incrementAndGet();
+            if (executor.isShutdown()) {
+                LOG.info("Running a task submitted to the background executor after it was shutdown()");
+            } else {
+                LOG.trace("Running a task submitted to a full executor queue on the submitting thread");
+            }
             r.run();
         }
     }
+
+    public interface ISettings {
+        int getServerThreads();
+
+        int getClientThreads();
+
+        int getBackgroundThreads();
+
+        int getEventLoopThreads();
+
+        int getReadOnlyProtocolThreads();
+
+        int getExecutorQueueCapacity();
+
+        int getThreadPriority();
+
+        boolean getUseDirectExecutors();
+
+        boolean getUseEpollTransport();
+    }
 }
@@ -44,11 +44,8 @@ final class UnicastToAllBroadcaster implements IBroadcaster {
     @Override
     @CanIgnoreReturnValue
     public synchronized List<ListenableFuture<RapidResponse>> broadcast(final RapidRequest msg) {
-        final List<ListenableFuture<RapidResponse>> futures = new ArrayList<>(recipients.size());
-        for (final Endpoint recipient: recipients) {
-            futures.add(messagingClient.sendMessageBestEffort(recipient, msg));
-        }
-        return futures;
+        messagingClient.sendOneWayMessage(recipients, msg);
+        return Collections.emptyList();
     }
 
     @Override
@@ -197,9 +197,15 @@ final class Utils {
 
         @Override
         public final int compare(final Endpoint c1, final Endpoint c2) {
-            final long hash1 = hashFunction.hashChars(c1.getHostname()) * 31 + hashFunction.hashInt(c1.getPort());
-            final long hash2 = hashFunction.hashChars(c2.getHostname()) * 31 + hashFunction.hashInt(c2.getPort());
-            return Long.compare(hash1, hash2);
+            return Long.compare(hash(c1), hash(c2));
+        }
+
+        /**
+         * The key by which endpoints are ordered. Callers that compare the same endpoint repeatedly
+         * should compute this once and reuse it.
+         */
+        long hash(final Endpoint endpoint) {
+            return hashFunction.hashChars(endpoint.getHostname()) * 31 + hashFunction.hashInt(endpoint.getPort());
         }
 
         static synchronized AddressComparator getComparatorWithSeed(final int seed) {
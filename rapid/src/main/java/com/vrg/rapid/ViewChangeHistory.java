@@ -0,0 +1,153 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.Metadata;
+import com.vrg.rapid.pb.NodeId;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.Immutable;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A bounded history of the most recent view changes. It allows a monitor to answer a node that rejoins with
+ * a configuration it already knows with only the changes made since then, instead of the whole membership.
+ */
+@ThreadSafe
+final class ViewChangeHistory {
+    private final int capacity;
+    @GuardedBy("this") private final ArrayDeque<ViewChange> viewChanges;
+
+    ViewChangeHistory(final int capacity) {
+        this.capacity = capacity;
+        this.viewChanges = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Records a view change, evicting the oldest one if the history is full.
+     *
+     * @param fromConfigurationId configuration the change was applied to
+     * @param toConfigurationId configuration that resulted from the change
+     * @param added nodes added by the change, along with their identifiers
+     * @param addedMetadata metadata of the added nodes that have any
+     * @param removed nodes removed by the change
+     */
+    synchronized void record(final long fromConfigurationId, final long toConfigurationId,
+                             final Map<Endpoint, NodeId> added, final Map<Endpoint, Metadata> addedMetadata,
+                             final Set<Endpoint> removed) {
+        if (capacity == 0) {
+            return;
+        }
+        if (viewChanges.size() == capacity) {
+            viewChanges.removeFirst();
+        }
+        viewChanges.addLast(new ViewChange(fromConfigurationId, toConfigurationId, added, addedMetadata, removed));
+    }
+
+    /**
+     * Folds the recorded view changes that lead from {@code baseConfigurationId} to {@code currentConfigurationId}
+     * into a single delta.
+     *
+     * @return the delta, or null if the history does not cover the whole way from the base configuration
+     */
+    @Nullable
+    synchronized Delta deltaSince(final long baseConfigurationId, final long currentConfigurationId) {
+        final Delta delta = new Delta(baseConfigurationId);
+        if (baseConfigurationId == currentConfigurationId) {
+            return delta;
+        }
+        final Iterator<ViewChange> iterator = viewChanges.iterator();
+        ViewChange change = null;
+        while (iterator.hasNext()) {
+            final ViewChange next = iterator.next();
+            if (next.fromConfigurationId == baseConfigurationId) {
+                change = next;
+                break;
+            }
+        }
+        long configurationId = baseConfigurationId;
+        while (change != null) {
+            if (change.fromConfigurationId != configurationId) {
+                return null;
+            }
+            delta.apply(change);
+            configurationId = change.toConfigurationId;
+            if (configurationId == currentConfigurationId) {
+                return delta;
+            }
+            change = iterator.hasNext() ? iterator.next() : null;
+        }
+        return null;
+    }
+
+    @Immutable
+    private static final class ViewChange {
+        private final long fromConfigurationId;
+        private final long toConfigurationId;
+        private final ImmutableMap<Endpoint, NodeId> added;
+        private final ImmutableMap<Endpoint, Metadata> addedMetadata;
+        private final ImmutableSet<Endpoint> removed;
+
+        private ViewChange(final long fromConfigurationId, final long toConfigurationId,
+                           final Map<Endpoint, NodeId> added, final Map<Endpoint, Metadata> addedMetadata,
+                           final Set<Endpoint> removed) {
+            this.fromConfigurationId = fromConfigurationId;
+            this.toConfigurationId = toConfigurationId;
+            this.added = ImmutableMap.copyOf(added);
+            this.addedMetadata = ImmutableMap.copyOf(addedMetadata);
+            this.removed = ImmutableSet.copyOf(removed);
+        }
+    }
+
+    /**
+     * The net effect of a series of view changes, relative to a base configuration. Applying it to the base
+     * means removing {@code removed} and then adding {@code added}. A node that was replaced within the window
+     * appears in both. The identifiers of every node added within the window are in {@code identifiers}, even
+     * if the node was removed again, because a configuration keeps every identifier it has seen.
+     */
+    static final class Delta {
+        final long baseConfigurationId;
+        final Map<Endpoint, NodeId> added = new LinkedHashMap<>();
+        final Map<Endpoint, Metadata> metadata = new LinkedHashMap<>();
+        final Set<NodeId> identifiers = new LinkedHashSet<>();
+        final Set<Endpoint> removed = new LinkedHashSet<>();
+
+        private Delta(final long baseConfigurationId) {
+            this.baseConfigurationId = baseConfigurationId;
+        }
+
+        private void apply(final ViewChange change) {
+            for (final Endpoint node : change.removed) {
+                if (added.remove(node) != null) {
+                    metadata.remove(node);
+                } else {
+                    removed.add(node);
+                }
+            }
+            added.putAll(change.added);
+            metadata.putAll(change.addedMetadata);
+            identifiers.addAll(change.added.values());
+        }
+    }
+}
@@ -23,6 +23,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
@@ -40,8 +41,8 @@ final class WatermarkBuffer {
     private final int L;
     @GuardedBy("lock") private int proposalCount = 0;
     @GuardedBy("lock") private int updatesInProgress = 0;
-    @GuardedBy("lock") private final Map<Endpoint, Map<Integer, Endpoint>> reportsPerHost;
-    @GuardedBy("lock") private final ArrayList<Endpoint> proposal = new ArrayList<>();
+    @GuardedBy("lock") private final Map<Endpoint, ReportMask> reportsPerHost;
+    @GuardedBy("lock") private final Set<Endpoint> proposal = new LinkedHashSet<>();
     @GuardedBy("lock") private final Set<Endpoint> preProposal = new HashSet<>();
     @GuardedBy("lock") private boolean seenLinkDownEvents = false;
     private final Object lock = new Object();
@@ -74,54 +75,84 @@ final class WatermarkBuffer {
     List<Endpoint> aggregateForProposal(final LinkUpdateMessage msg) {
         Objects.requireNonNull(msg);
         final ArrayList<Endpoint> proposals = new ArrayList<>();
-        msg.getRingNumberList().forEach(ringNumber ->
-           proposals.addAll(aggregateForProposal(msg.getLinkSrc(), msg.getLinkDst(), msg.getLinkStatus(), ringNumber)));
+        synchronized (lock) {
+            aggregateForProposal(msg, proposals);
+        }
         return proposals;
     }
 
-    private List<Endpoint> aggregateForProposal(final Endpoint linkSrc, final Endpoint linkDst,
-                                                final LinkStatus linkStatus, final int ringNumber) {
-        assert ringNumber <= K;
-
+    /**
+     * Apply a batch of LinkUpdateMessages against the Watermark filter under a single acquisition
+     * of the lock. Equivalent to applying each message in order with aggregateForProposal(), and
+     * concatenating the results.
+     *
+     * @param msgs the LinkUpdateMessages to apply against the filter
+     * @return a list of endpoints about which a view change has been recorded. Empty list if there is no proposal.
+     */
+    List<Endpoint> aggregateBatch(final List<LinkUpdateMessage> msgs) {
+        Objects.requireNonNull(msgs);
+        final ArrayList<Endpoint> proposals = new ArrayList<>(0);
         synchronized (lock) {
-            if (linkStatus == LinkStatus.DOWN) {
-                seenLinkDownEvents = true;
+            for (int i = 0; i < msgs.size(); i++) {
+                aggregateForProposal(msgs.get(i), proposals);
             }
+        }
+        return proposals;
+    }
 
-            final Map<Integer, Endpoint> reportsForHost = reportsPerHost.computeIfAbsent(
-                                                                 linkDst,
-                                                                 k -> new HashMap<>(K));
+    @GuardedBy("lock")
+    private void aggregateForProposal(final LinkUpdateMessage msg, final List<Endpoint> proposals) {
+        final Endpoint linkDst = msg.getLinkDst();
+        final LinkStatus linkStatus = msg.getLinkStatus();
+        for (int i = 0; i < msg.getRingNumberCount(); i++) {
+            aggregateForProposal(linkDst, linkStatus, msg.getRingNumber(i), proposals);
+        }
+    }
 
-            if (reportsForHost.containsKey(ringNumber)) {
-                return Collections.emptyList();  // duplicate announcement, ignore.
-            }
+    /**
+     * Records a single report about {@code linkDst}, and appends the nodes of a proposal to {@code proposals}
+     * if the report completes one.
+     */
+    @GuardedBy("lock")
+    private void aggregateForProposal(final Endpoint linkDst, final LinkStatus linkStatus, final int ringNumber,
+                                      final List<Endpoint> proposals) {
+        assert ringNumber >= 0 && ringNumber < K;
 
-            reportsForHost.put(ringNumber, linkSrc);
-            final int numReportsForHost = reportsForHost.size();
+        if (linkStatus == LinkStatus.DOWN) {
+            seenLinkDownEvents = true;
+        }
 
-            if (numReportsForHost == L) {
-                updatesInProgress++;
-                preProposal.add(linkDst);
-            }
+        ReportMask reportsForHost = reportsPerHost.get(linkDst);
+        if (reportsForHost == null) {
+            reportsForHost = new ReportMask(K);
+            reportsPerHost.put(linkDst, reportsForHost);
+        }
 
-            if (numReportsForHost == H) {
-                // Enough reports about linkDst have been received that it is safe to act upon,
-                // provided there are no other nodes with L < #reports < H.
-                preProposal.remove(linkDst);
-                proposal.add(linkDst);
-                updatesInProgress--;
-
-                if (updatesInProgress == 0) {
-                    // No outstanding updates, so all nodes that have crossed the H threshold of reports are
-                    // now part of a single proposal.
-                    proposalCount++;
-                    final List<Endpoint> ret = ImmutableList.copyOf(proposal);
-                    proposal.clear();
-                    return ret;
-                }
-            }
+        if (!reportsForHost.add(ringNumber)) {
+            return;  // duplicate announcement, ignore.
+        }
+
+        final int numReportsForHost = reportsForHost.count;
 
-            return Collections.emptyList();
+        if (numReportsForHost == L) {
+            updatesInProgress++;
+            preProposal.add(linkDst);
+        }
+
+        if (numReportsForHost == H) {
+            // Enough reports about linkDst have been received that it is safe to act upon,
+            // provided there are no other nodes with L < #reports < H.
+            preProposal.remove(linkDst);
+            proposal.add(linkDst);
+            updatesInProgress--;
+
+            if (updatesInProgress == 0) {
+                // No outstanding updates, so all nodes that have crossed the H threshold of reports are
+                // now part of a single proposal.
+                proposalCount++;
+                proposals.addAll(proposal);
+                proposal.clear();
+            }
         }
     }
 
@@ -142,18 +173,19 @@ final class WatermarkBuffer {
             final List<Endpoint> proposalsToReturn = new ArrayList<>();
             final List<Endpoint> preProposalCopy = ImmutableList.copyOf(preProposal);
             for (final Endpoint nodeInFlux: preProposalCopy) {
-                final List<Endpoint> monitors = view.isHostPresent(nodeInFlux)
+                // Both lookups below are served from the view's per-configuration monitoring tables
+                final boolean isPresent = view.isHostPresent(nodeInFlux);
+                final List<Endpoint> monitors = isPresent
                                                     ? view.getMonitorsOf(nodeInFlux)          // For failing nodes
                                                     : view.getExpectedMonitorsOf(nodeInFlux); // For joining nodes
+                final LinkStatus linkStatus = isPresent ? LinkStatus.DOWN : LinkStatus.UP;
                 // Account for all links between nodes that are past the L threshold
-                int ringNumber = 0;
-                for (final Endpoint monitor : monitors) {
+                for (int ringNumber = 0; ringNumber < monitors.size(); ringNumber++) {
+                    final Endpoint monitor = monitors.get(ringNumber);
                     if (proposal.contains(monitor) || preProposal.contains(monitor)) {
                         // Implicit detection of link between monitor and nodeInFlux
-                        final LinkStatus linkStatus = view.isHostPresent(nodeInFlux) ? LinkStatus.DOWN : LinkStatus.UP;
-                        proposalsToReturn.addAll(aggregateForProposal(monitor, nodeInFlux, linkStatus, ringNumber));
+                        aggregateForProposal(nodeInFlux, linkStatus, ringNumber, proposalsToReturn);
                     }
-                    ringNumber++;
                 }
             }
 
@@ -174,4 +206,33 @@ final class WatermarkBuffer {
             seenLinkDownEvents = false;
         }
     }
-}
\ No newline at end of file
+
+    /**
+     * The ring numbers on which a destination has been reported, kept as a K-bit mask along with
+     * the number of bits set.
+     */
+    private static final class ReportMask {
+        private final long[] words;
+        private int count = 0;
+
+        ReportMask(final int K) {
+            this.words = new long[(K + 63) >>> 6];
+        }
+
+        /**
+         * Records a report on ring {@code ringNumber}.
+         *
+         * @return false if a report on that ring had already been recorded.
+         */
+        boolean add(final int ringNumber) {
+            final int word = ringNumber >>> 6;
+            final long bit = 1L << ringNumber;
+            if ((words[word] & bit) != 0) {
+                return false;
+            }
+            words[word] |= bit;
+            count++;
+            return true;
+        }
+    }
+}
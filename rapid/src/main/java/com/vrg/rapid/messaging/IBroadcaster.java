@@ -15,16 +15,36 @@ package com.vrg.rapid.messaging;
 
 import com.google.common.util.concurrent.ListenableFuture;
 import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.GossipMessage;
 import com.vrg.rapid.pb.RapidRequest;
 import com.vrg.rapid.pb.RapidResponse;
 
 import java.util.List;
+import java.util.Optional;
 
 /**
  * Supports different broadcast implementations (eager flooding, gossip, etc.).
  */
 public interface IBroadcaster {
+    /**
+     * Sends a message to all recipients.
+     *
+     * @return the responses of the recipients. Broadcasters that send one-way messages, such as the ones in
+     *         Rapid, return an empty list, since recipients do not reply to one-way messages.
+     */
     List<ListenableFuture<RapidResponse>> broadcast(RapidRequest rapidRequest);
 
     void setMembership(List<Endpoint> recipients);
+
+    /**
+     * Handles a message that the broadcaster of another member relayed to this node, and relays it further
+     * if the implementation requires it. Broadcasters that send every message straight to all recipients
+     * never relay messages, and simply deliver what they receive.
+     *
+     * @param gossipMessage the relayed message
+     * @return the broadcast message to deliver to this node, or empty if it was already delivered
+     */
+    default Optional<RapidRequest> receive(final GossipMessage gossipMessage) {
+        return Optional.of(gossipMessage.getPayload());
+    }
 }
\ No newline at end of file
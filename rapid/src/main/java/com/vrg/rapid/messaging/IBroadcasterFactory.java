@@ -0,0 +1,45 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid.messaging;
+
+import com.vrg.rapid.pb.Endpoint;
+import io.grpc.ExperimentalApi;
+
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Objects that implement this interface can be supplied to a Cluster to choose how the MembershipService
+ * broadcasts messages to the members of the cluster.
+ */
+@ExperimentalApi
+public interface IBroadcasterFactory {
+    IBroadcaster createInstance(final Endpoint address, final IMessagingClient messagingClient);
+
+    /**
+     * Creates a broadcaster for a node of a Cluster. {@code ringSuccessors} returns the node's neighbor on each
+     * of the K monitoring rings of the current configuration, as tracked by the MembershipService, so that
+     * broadcasters that relay messages over the rings do not have to rebuild them. By the time the broadcaster's
+     * setMembership() is called for a new configuration, it returns the neighbors in that configuration.
+     * Broadcasters that do not use the rings ignore it.
+     *
+     * @param address the node's address
+     * @param messagingClient the client to send messages with
+     * @param ringSuccessors the node's neighbor on each ring, ordered by ring
+     */
+    default IBroadcaster createInstance(final Endpoint address, final IMessagingClient messagingClient,
+                                        final Supplier<List<Endpoint>> ringSuccessors) {
+        return createInstance(address, messagingClient);
+    }
+}
@@ -6,6 +6,8 @@ import com.vrg.rapid.pb.Endpoint;
 import com.vrg.rapid.pb.RapidRequest;
 import com.vrg.rapid.pb.RapidResponse;
 
+import java.util.List;
+
 /**
  * Represents the sending part of the messaging API
  */
@@ -30,6 +32,29 @@ public interface IMessagingClient {
     @CanIgnoreReturnValue
     ListenableFuture<RapidResponse> sendMessageBestEffort(final Endpoint remote, final RapidRequest msg);
 
+    /**
+     * Send a message to a remote node without expecting a response. Failures are not reported.
+     *
+     * @param remote Remote host to send the message to
+     * @param msg Message to send
+     */
+    default void sendOneWayMessage(final Endpoint remote, final RapidRequest msg) {
+        sendMessageBestEffort(remote, msg);
+    }
+
+    /**
+     * Send the same message to several remote nodes without expecting responses. Failures are not reported.
+     * Implementations may encode the message once and share the encoded bytes between all recipients.
+     *
+     * @param remotes Remote hosts to send the message to
+     * @param msg Message to send
+     */
+    default void sendOneWayMessage(final List<Endpoint> remotes, final RapidRequest msg) {
+        for (final Endpoint remote: remotes) {
+            sendOneWayMessage(remote, msg);
+        }
+    }
+
     /**
      * Signals to the messaging client that it should cleanup all resources in use.
      */
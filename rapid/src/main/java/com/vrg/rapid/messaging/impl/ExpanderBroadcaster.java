@@ -0,0 +1,208 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid.messaging.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.vrg.rapid.messaging.IBroadcaster;
+import com.vrg.rapid.messaging.IBroadcasterFactory;
+import com.vrg.rapid.messaging.IMessagingClient;
+import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.GossipMessage;
+import com.vrg.rapid.pb.RapidRequest;
+import com.vrg.rapid.pb.RapidResponse;
+import io.grpc.ExperimentalApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Supplier;
+
+/**
+ * A broadcaster that floods messages over the K pseudo-random rings that members use for monitoring. A member
+ * hands every message it broadcasts, or receives for the first time, to its successor on each of the K rings.
+ * Since the union of K random rings is an expander, every member is reached in O(log N) hops, while no member
+ * ever sends a message to more than K others. Members remember the identifiers of recent messages so that they
+ * deliver and relay each message only once, and stop relaying a message after getMaxHops() hops.
+ *
+ * A member's successors on the rings are its monitors. They are derived from the membership alone, so every
+ * member agrees on the broadcast graph of a configuration. The broadcaster reads them from the rings that the
+ * MembershipService maintains, through the supplier that the Cluster hands to the Factory, whenever the
+ * membership changes. All members of a cluster have to use the same kind of broadcaster.
+ */
+@ThreadSafe
+@ExperimentalApi
+public final class ExpanderBroadcaster implements IBroadcaster {
+    private static final Logger LOG = LoggerFactory.getLogger(ExpanderBroadcaster.class);
+    private static final int MIN_SEEN_MESSAGES = 1024;
+    private static final int SEEN_MESSAGES_PER_MEMBER = 8;
+    private static final int HOP_SLACK = 3;
+    private final Endpoint address;
+    private final IMessagingClient messagingClient;
+    private final int maxRings;
+    private final Supplier<List<Endpoint>> ringSuccessors;
+    @GuardedBy("this") private List<Endpoint> successors = Collections.emptyList();
+    @GuardedBy("this") private boolean isMember = false;
+    @GuardedBy("this") private int maxHops = 1;
+    private volatile int seenMessagesCapacity = MIN_SEEN_MESSAGES;
+    @GuardedBy("this") private final Set<Long> seenMessages = Collections.newSetFromMap(
+            new LinkedHashMap<Long, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, Boolean> eldest) {
+                    return size() > seenMessagesCapacity;
+                }
+            });
+
+    private ExpanderBroadcaster(final Endpoint address, final IMessagingClient messagingClient, final int maxRings,
+                                final Supplier<List<Endpoint>> ringSuccessors) {
+        this.address = address;
+        this.messagingClient = messagingClient;
+        this.maxRings = maxRings;
+        this.ringSuccessors = ringSuccessors;
+    }
+
+    @Override
+    @CanIgnoreReturnValue
+    public List<ListenableFuture<RapidResponse>> broadcast(final RapidRequest rapidRequest) {
+        final long messageId = ThreadLocalRandom.current().nextLong();
+        final List<Endpoint> targets;
+        final GossipMessage gossipMessage;
+        final boolean deliverLocally;
+        synchronized (this) {
+            seenMessages.add(messageId);
+            targets = successors;
+            gossipMessage = GossipMessage.newBuilder()
+                    .setSender(address)
+                    .setMessageId(messageId)
+                    .setRemainingRounds(maxHops)
+                    .setPayload(rapidRequest)
+                    .build();
+            deliverLocally = isMember;
+        }
+        if (deliverLocally) {
+            messagingClient.sendOneWayMessage(address, rapidRequest);
+        }
+        messagingClient.sendOneWayMessage(targets, RapidRequest.newBuilder().setGossipMessage(gossipMessage).build());
+        return Collections.emptyList();
+    }
+
+    /**
+     * Reads this node's ring successors for the new membership. Messages are relayed to the successors on the
+     * first maxRings rings, each of them once.
+     */
+    @Override
+    public synchronized void setMembership(final List<Endpoint> recipients) {
+        LOG.trace("setMembership {}", recipients);
+        final List<Endpoint> neighbors = ringSuccessors.get();
+        final Collection<Endpoint> distinct = new LinkedHashSet<>(neighbors.subList(0,
+                                                                    Math.min(maxRings, neighbors.size())));
+        distinct.remove(address);
+        this.successors = Collections.unmodifiableList(new ArrayList<>(distinct));
+        this.isMember = recipients.contains(address);
+        this.maxHops = getMaxHops(recipients.size(), successors.size());
+        this.seenMessagesCapacity = Math.max(MIN_SEEN_MESSAGES, SEEN_MESSAGES_PER_MEMBER * recipients.size());
+    }
+
+    /**
+     * Bounds the number of hops a message travels. The union of the rings behaves like a random graph in which
+     * every member has {@code fanout} successors, and the diameter of such a graph is about log_fanout(N) with
+     * high probability. A message is relayed for ceil(log_fanout(N)) + HOP_SLACK hops, where the slack absorbs
+     * the difference between the actual rings and a random graph. With a single successor, the rings are one
+     * cycle, which takes N - 1 hops to cover.
+     *
+     * @param membershipSize the number of members, N
+     * @param fanout the number of distinct successors of a member
+     * @return the number of hops after which a message is no longer relayed
+     */
+    private static int getMaxHops(final int membershipSize, final int fanout) {
+        if (membershipSize <= 1) {
+            return 1;
+        }
+        if (fanout <= 1) {
+            return membershipSize - 1;
+        }
+        return (int) Math.ceil(Math.log(membershipSize) / Math.log(fanout)) + HOP_SLACK;
+    }
+
+    @Override
+    public Optional<RapidRequest> receive(final GossipMessage gossipMessage) {
+        final List<Endpoint> targets;
+        synchronized (this) {
+            if (!seenMessages.add(gossipMessage.getMessageId())) {
+                return Optional.empty();
+            }
+            if (gossipMessage.getRemainingRounds() > 1) {
+                targets = new ArrayList<>(successors);
+                targets.remove(gossipMessage.getSender());
+            } else {
+                targets = Collections.emptyList();
+            }
+        }
+        if (!targets.isEmpty()) {
+            final GossipMessage relayed = gossipMessage.toBuilder()
+                    .setSender(address)
+                    .setRemainingRounds(gossipMessage.getRemainingRounds() - 1)
+                    .build();
+            messagingClient.sendOneWayMessage(targets, RapidRequest.newBuilder().setGossipMessage(relayed).build());
+        }
+        return Optional.of(gossipMessage.getPayload());
+    }
+
+    public static class Factory implements IBroadcasterFactory {
+        private final int rings;
+
+        /**
+         * Relays messages over all the rings that members use for monitoring.
+         */
+        public Factory() {
+            this(Integer.MAX_VALUE);
+        }
+
+        /**
+         * @param rings number of rings to relay messages over, which bounds the fan-out of every member
+         */
+        public Factory(final int rings) {
+            if (rings <= 0) {
+                throw new IllegalArgumentException("rings must be positive");
+            }
+            this.rings = rings;
+        }
+
+        /**
+         * An ExpanderBroadcaster needs its node's ring successors, which Cluster supplies through the other
+         * createInstance() method.
+         */
+        @Override
+        public IBroadcaster createInstance(final Endpoint address, final IMessagingClient messagingClient) {
+            throw new UnsupportedOperationException("ExpanderBroadcaster requires the ring successors of its node");
+        }
+
+        @Override
+        public IBroadcaster createInstance(final Endpoint address, final IMessagingClient messagingClient,
+                                           final Supplier<List<Endpoint>> ringSuccessors) {
+            return new ExpanderBroadcaster(address, messagingClient, rings, ringSuccessors);
+        }
+    }
+}
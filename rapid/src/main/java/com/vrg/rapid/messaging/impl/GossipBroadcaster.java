@@ -0,0 +1,216 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid.messaging.impl;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.vrg.rapid.messaging.IBroadcaster;
+import com.vrg.rapid.messaging.IBroadcasterFactory;
+import com.vrg.rapid.messaging.IMessagingClient;
+import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.GossipMessage;
+import com.vrg.rapid.pb.RapidRequest;
+import com.vrg.rapid.pb.RapidResponse;
+import io.grpc.ExperimentalApi;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.annotation.concurrent.ThreadSafe;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * An epidemic broadcaster. The sender hands a message to {@code fanout} random members. Every member that receives
+ * it for the first time delivers it and relays it to {@code fanout} random members of its own, until the message
+ * has travelled {@code rounds} hops. Members remember the identifiers of recent messages so that they deliver and
+ * relay each message only once.
+ *
+ * With a fanout of O(log N), a member sends O(log N) messages per broadcast instead of N. All members of a cluster
+ * have to use the same kind of broadcaster.
+ */
+@ThreadSafe
+@ExperimentalApi
+public final class GossipBroadcaster implements IBroadcaster {
+    private static final Logger LOG = LoggerFactory.getLogger(GossipBroadcaster.class);
+    private static final int MIN_SEEN_MESSAGES = 1024;
+    private static final int SEEN_MESSAGES_PER_MEMBER = 8;
+    private final Endpoint address;
+    private final IMessagingClient messagingClient;
+    private final int configuredFanout;
+    private final int configuredRounds;
+    @GuardedBy("this") private List<Endpoint> peers = Collections.emptyList();
+    @GuardedBy("this") private boolean isMember = false;
+    @GuardedBy("this") private int fanout = 1;
+    @GuardedBy("this") private int rounds = 1;
+    private volatile int seenMessagesCapacity = MIN_SEEN_MESSAGES;
+    @GuardedBy("this") private final Set<Long> seenMessages = Collections.newSetFromMap(
+            new LinkedHashMap<Long, Boolean>() {
+                @Override
+                protected boolean removeEldestEntry(final Map.Entry<Long, Boolean> eldest) {
+                    return size() > seenMessagesCapacity;
+                }
+            });
+
+    private GossipBroadcaster(final Endpoint address, final IMessagingClient messagingClient,
+                              final int fanout, final int rounds) {
+        this.address = address;
+        this.messagingClient = messagingClient;
+        this.configuredFanout = fanout;
+        this.configuredRounds = rounds;
+    }
+
+    @Override
+    @CanIgnoreReturnValue
+    public List<ListenableFuture<RapidResponse>> broadcast(final RapidRequest rapidRequest) {
+        final long messageId = ThreadLocalRandom.current().nextLong();
+        final List<Endpoint> targets;
+        final GossipMessage gossipMessage;
+        final boolean deliverLocally;
+        synchronized (this) {
+            seenMessages.add(messageId);
+            targets = selectPeers(null);
+            gossipMessage = GossipMessage.newBuilder()
+                    .setSender(address)
+                    .setMessageId(messageId)
+                    .setRemainingRounds(rounds)
+                    .setPayload(rapidRequest)
+                    .build();
+            deliverLocally = isMember;
+        }
+        if (deliverLocally) {
+            messagingClient.sendOneWayMessage(address, rapidRequest);
+        }
+        messagingClient.sendOneWayMessage(targets, RapidRequest.newBuilder().setGossipMessage(gossipMessage).build());
+        return Collections.emptyList();
+    }
+
+    @Override
+    public synchronized void setMembership(final List<Endpoint> recipients) {
+        LOG.trace("setMembership {}", recipients);
+        final List<Endpoint> others = new ArrayList<>(recipients.size());
+        for (final Endpoint recipient: recipients) {
+            if (!recipient.equals(address)) {
+                others.add(recipient);
+            }
+        }
+        this.peers = others;
+        this.isMember = others.size() < recipients.size();
+        this.fanout = configuredFanout > 0 ? configuredFanout : defaultFanout(recipients.size());
+        this.rounds = configuredRounds > 0 ? configuredRounds : defaultRounds(recipients.size(), fanout);
+        this.seenMessagesCapacity = Math.max(MIN_SEEN_MESSAGES, SEEN_MESSAGES_PER_MEMBER * recipients.size());
+    }
+
+    @Override
+    public Optional<RapidRequest> receive(final GossipMessage gossipMessage) {
+        final List<Endpoint> targets;
+        synchronized (this) {
+            if (!seenMessages.add(gossipMessage.getMessageId())) {
+                return Optional.empty();
+            }
+            targets = gossipMessage.getRemainingRounds() > 1
+                    ? selectPeers(gossipMessage.getSender())
+                    : Collections.emptyList();
+        }
+        if (!targets.isEmpty()) {
+            final GossipMessage relayed = gossipMessage.toBuilder()
+                    .setSender(address)
+                    .setRemainingRounds(gossipMessage.getRemainingRounds() - 1)
+                    .build();
+            messagingClient.sendOneWayMessage(targets, RapidRequest.newBuilder().setGossipMessage(relayed).build());
+        }
+        return Optional.of(gossipMessage.getPayload());
+    }
+
+    /**
+     * Picks {@code fanout} distinct random peers, leaving out {@code exclude}.
+     */
+    @GuardedBy("this")
+    private List<Endpoint> selectPeers(@Nullable final Endpoint exclude) {
+        if (peers.size() <= fanout + 1) {
+            final List<Endpoint> targets = new ArrayList<>(peers);
+            if (exclude != null) {
+                targets.remove(exclude);
+            }
+            return targets;
+        }
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final List<Endpoint> targets = new ArrayList<>(fanout);
+        while (targets.size() < fanout) {
+            final Endpoint peer = peers.get(random.nextInt(peers.size()));
+            if (!peer.equals(exclude) && !targets.contains(peer)) {
+                targets.add(peer);
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * A fanout of log2(N) + 2 makes it unlikely that a member is missed by every relay.
+     */
+    private static int defaultFanout(final int membershipSize) {
+        return log2Ceiling(membershipSize) + 2;
+    }
+
+    /**
+     * Enough hops for the message to reach every member with the given fanout, plus two.
+     */
+    private static int defaultRounds(final int membershipSize, final int fanout) {
+        int rounds = 0;
+        for (long reached = 1; reached < membershipSize; reached *= fanout) {
+            rounds++;
+        }
+        return rounds + 2;
+    }
+
+    private static int log2Ceiling(final int value) {
+        return value <= 1 ? 0 : 32 - Integer.numberOfLeadingZeros(value - 1);
+    }
+
+    public static class Factory implements IBroadcasterFactory {
+        private final int fanout;
+        private final int rounds;
+
+        /**
+         * Derives the fanout and the number of rounds from the size of the membership.
+         */
+        public Factory() {
+            this(0, 0);
+        }
+
+        /**
+         * @param fanout number of members each member relays a message to, or 0 to derive it from the membership
+         * @param rounds number of hops a message travels, or 0 to derive it from the membership and fanout
+         */
+        public Factory(final int fanout, final int rounds) {
+            if (fanout < 0 || rounds < 0) {
+                throw new IllegalArgumentException("fanout and rounds cannot be negative");
+            }
+            this.fanout = fanout;
+            this.rounds = rounds;
+        }
+
+        @Override
+        public IBroadcaster createInstance(final Endpoint address, final IMessagingClient messagingClient) {
+            return new GossipBroadcaster(address, messagingClient, fanout, rounds);
+        }
+    }
+}
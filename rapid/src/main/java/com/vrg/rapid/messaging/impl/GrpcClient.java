@@ -19,11 +19,14 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import com.google.common.cache.RemovalListener;
 import com.google.common.cache.RemovalListeners;
+import com.google.common.io.ByteStreams;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 import com.google.errorprone.annotations.CanIgnoreReturnValue;
+import com.google.protobuf.CodedOutputStream;
 import com.vrg.rapid.Settings;
 import com.vrg.rapid.SharedResources;
 import com.vrg.rapid.messaging.IMessagingClient;
@@ -32,23 +35,49 @@ import com.vrg.rapid.pb.MembershipServiceGrpc;
 import com.vrg.rapid.pb.MembershipServiceGrpc.MembershipServiceFutureStub;
 import com.vrg.rapid.pb.RapidRequest;
 import com.vrg.rapid.pb.RapidResponse;
+import com.vrg.rapid.pb.StreamedRapidRequest;
+import com.vrg.rapid.pb.StreamedRapidResponse;
+import io.grpc.CallOptions;
 import io.grpc.Channel;
+import io.grpc.Context;
+import io.grpc.Drainable;
+import io.grpc.KnownLength;
+import io.grpc.MethodDescriptor;
 import io.grpc.Status;
 import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessChannelBuilder;
 import io.grpc.internal.ManagedChannelImpl;
 import io.grpc.netty.NettyChannelBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientCalls;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
 import io.netty.channel.ChannelOption;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.SocketChannel;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
-import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.function.Supplier;
 
 
@@ -63,12 +92,32 @@ public class GrpcClient implements IMessagingClient {
     public static final int DEFAULT_GRPC_DEFAULT_RETRIES = 5;
     public static final int DEFAULT_GRPC_JOIN_TIMEOUT = DEFAULT_GRPC_TIMEOUT_MS * 5;
     public static final int DEFAULT_GRPC_PROBE_TIMEOUT = 1000;
+    public static final boolean DEFAULT_GRPC_USE_STREAMING_TRANSPORT = false;
+    public static final int DEFAULT_GRPC_RETRY_BASE_DELAY_MS = 10;
+    public static final int DEFAULT_GRPC_JOIN_RETRY_BASE_DELAY_MS = 100;
+    public static final int DEFAULT_GRPC_PROBE_RETRY_BASE_DELAY_MS = 10;
+    public static final double DEFAULT_GRPC_RETRY_BUDGET_RATIO = 0.2;
+    public static final int DEFAULT_GRPC_RETRY_BUDGET_BURST = 10;
+    // Requests awaiting a response on a single stream, beyond which requests fall back to unary calls
+    private static final int MAX_PENDING_STREAMED_REQUESTS = 1024;
+    // Same RPC as MembershipService/sendRequest, but for requests that were already serialized
+    private static final MethodDescriptor<byte[], RapidResponse> METHOD_SEND_SERIALIZED_REQUEST =
+            MembershipServiceGrpc.METHOD_SEND_REQUEST.toBuilder(new SerializedRequestMarshaller(),
+                    ProtoUtils.marshaller(RapidResponse.getDefaultInstance())).build();
+    // Same RPC as MembershipService/sendRequestStream, but for requests that were already serialized
+    private static final MethodDescriptor<StreamedRequest, StreamedRapidResponse> METHOD_SEND_REQUEST_STREAM =
+            MembershipServiceGrpc.METHOD_SEND_REQUEST_STREAM.toBuilder(new StreamedRequestMarshaller(),
+                    ProtoUtils.marshaller(StreamedRapidResponse.getDefaultInstance())).build();
 
     private final Endpoint address;
     private final LoadingCache<Endpoint, Channel> channelMap;
+    private final Map<Endpoint, RequestStream> requestStreams = new ConcurrentHashMap<>();
+    private final LoadingCache<Endpoint, RetryBudget> retryBudgets;
     private final ExecutorService grpcExecutor;
     private final ExecutorService backgroundExecutor;
+    private final ScheduledExecutorService scheduledExecutor;
     @Nullable private final EventLoopGroup eventLoopGroup;
+    private final Class<? extends SocketChannel> channelType;
     private final AtomicBoolean isShuttingDown = new AtomicBoolean(false);
     private final ISettings settings;
 
@@ -87,9 +136,13 @@ public class GrpcClient implements IMessagingClient {
         this.settings = settings;
         this.grpcExecutor = sharedResources.getClientChannelExecutor();
         this.backgroundExecutor = sharedResources.getBackgroundExecutor();
+        this.scheduledExecutor = sharedResources.getScheduledTasksExecutor();
         this.eventLoopGroup = settings.getUseInProcessTransport() ? null : sharedResources.getEventLoopGroup();
-        final RemovalListener<Endpoint, Channel> removalListener =
-                removal -> shutdownChannel((ManagedChannelImpl) removal.getValue());
+        this.channelType = sharedResources.getClientChannelType();
+        final RemovalListener<Endpoint, Channel> removalListener = removal -> {
+            closeRequestStream(removal.getKey(), removal.getValue());
+            shutdownChannel((ManagedChannelImpl) removal.getValue());
+        };
         this.channelMap = CacheBuilder.newBuilder()
                 .expireAfterAccess(30, TimeUnit.SECONDS)
                 .removalListener(RemovalListeners.asynchronous(removalListener, backgroundExecutor))
@@ -99,6 +152,16 @@ public class GrpcClient implements IMessagingClient {
                         return getChannel(Endpoint);
                     }
                 });
+        // Budgets outlive the channels, which are dropped whenever a peer becomes unavailable
+        this.retryBudgets = CacheBuilder.newBuilder()
+                .expireAfterAccess(30, TimeUnit.SECONDS)
+                .build(new CacheLoader<Endpoint, RetryBudget>() {
+                    @Override
+                    public RetryBudget load(final Endpoint endpoint) throws Exception {
+                        return new RetryBudget(settings.getGrpcRetryBudgetRatio(),
+                                               settings.getGrpcRetryBudgetBurst());
+                    }
+                });
     }
 
     /**
@@ -109,32 +172,103 @@ public class GrpcClient implements IMessagingClient {
         Objects.requireNonNull(remote);
         Objects.requireNonNull(msg);
 
-        final Supplier<ListenableFuture<RapidResponse>> call = () -> {
-            final MembershipServiceFutureStub stub = getFutureStub(remote)
-                    .withDeadlineAfter(getTimeoutForMessageMs(msg),
-                            TimeUnit.MILLISECONDS);
-            return stub.sendRequest(msg);
-        };
-        return callWithRetries(call, remote, settings.getGrpcDefaultRetries());
+        final Supplier<ListenableFuture<RapidResponse>> call = () -> sendRequest(remote, msg);
+        return callWithRetries(call, remote, settings.getGrpcDefaultRetries(), getRetryPolicyForMessage(msg));
     }
 
     /**
-     * From IMessagingClient
+     * From IMessagingClient. The call is started on the caller's thread, which does not wait for it. The call
+     * runs in the root gRPC context, so that it is not cancelled along with an incoming call that triggered it.
      */
     @Override
     public ListenableFuture<RapidResponse> sendMessageBestEffort(final Endpoint remote, final RapidRequest msg) {
         Objects.requireNonNull(msg);
+        final Context previous = Context.ROOT.attach();
+        try {
+            return callWithRetries(() -> sendRequest(remote, msg), remote, 0, RetryPolicy.IMMEDIATE);
+        } finally {
+            Context.ROOT.detach(previous);
+        }
+    }
+
+    /**
+     * From IMessagingClient
+     */
+    @Override
+    public void sendOneWayMessage(final Endpoint remote, final RapidRequest msg) {
+        sendOneWayMessage(Collections.singletonList(remote), msg);
+    }
+
+    /**
+     * From IMessagingClient. The message is encoded once and sent from the caller's thread, without retries.
+     * Over a request stream, the remote sends no response. Otherwise, the response to the unary call is
+     * dropped when it arrives.
+     */
+    @Override
+    public void sendOneWayMessage(final List<Endpoint> remotes, final RapidRequest msg) {
+        Objects.requireNonNull(msg);
+        final byte[] serializedMsg = msg.toByteArray();
+        final int timeoutMs = getTimeoutForMessageMs(msg);
+        final Context previous = Context.ROOT.attach();
         try {
-            return backgroundExecutor.submit(() -> {
-                final Supplier<ListenableFuture<RapidResponse>> call = () -> {
-                    final MembershipServiceFutureStub stub;
-                    stub = getFutureStub(remote).withDeadlineAfter(getTimeoutForMessageMs(msg), TimeUnit.MILLISECONDS);
-                    return stub.sendRequest(msg);
-                };
-                return callWithRetries(call, remote, 0);
-            }).get();
-        } catch (final InterruptedException | ExecutionException e) {
-            return Futures.immediateFailedFuture(e);
+            for (final Endpoint remote: remotes) {
+                sendOneWaySerializedRequest(remote, serializedMsg, timeoutMs);
+            }
+        } finally {
+            Context.ROOT.detach(previous);
+        }
+    }
+
+    private void sendOneWaySerializedRequest(final Endpoint remote, final byte[] serializedMsg,
+                                             final int timeoutMs) {
+        try {
+            if (settings.getUseStreamingTransport() && getRequestStream(remote).sendOneWay(serializedMsg)) {
+                return;
+            }
+            ClientCalls.asyncUnaryCall(getCachedChannel(remote).newCall(METHOD_SEND_SERIALIZED_REQUEST,
+                    CallOptions.DEFAULT.withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS)), serializedMsg,
+                    new OneWayResponseObserver(remote));
+        } catch (final ShuttingDownException e) {
+            LOG.trace("Dropping one-way message to {} during shutdown", remote);
+        }
+    }
+
+    /**
+     * Sends a request over the stream to {@code remote} if streaming is enabled, and as a unary call otherwise,
+     * or if the stream cannot take the request.
+     */
+    private ListenableFuture<RapidResponse> sendRequest(final Endpoint remote, final RapidRequest msg) {
+        final int timeoutMs = getTimeoutForMessageMs(msg);
+        if (settings.getUseStreamingTransport()) {
+            final ListenableFuture<RapidResponse> response = getRequestStream(remote).send(msg.toByteArray(),
+                                                                                            timeoutMs);
+            if (response != null) {
+                return response;
+            }
+        }
+        return getFutureStub(remote).withDeadlineAfter(timeoutMs, TimeUnit.MILLISECONDS).sendRequest(msg);
+    }
+
+    /**
+     * Returns the open stream to {@code remote}, opening a new one if there is none on the current channel.
+     */
+    private RequestStream getRequestStream(final Endpoint remote) {
+        final Channel channel = getCachedChannel(remote);
+        return requestStreams.compute(remote, (endpoint, stream) ->
+                stream != null && stream.channel == channel && !stream.isClosed() ? stream
+                                                                                 : RequestStream.open(this, channel));
+    }
+
+    /**
+     * Closes the stream to {@code remote} if it was opened on {@code channel}, which is being shut down.
+     */
+    private void closeRequestStream(@Nullable final Endpoint remote, final Channel channel) {
+        if (remote == null) {
+            return;
+        }
+        final RequestStream stream = requestStreams.get(remote);
+        if (stream != null && stream.channel == channel && requestStreams.remove(remote, stream)) {
+            stream.close();
         }
     }
 
@@ -161,9 +295,11 @@ public class GrpcClient implements IMessagingClient {
     @CanIgnoreReturnValue
     private <T> ListenableFuture<T> callWithRetries(final Supplier<ListenableFuture<T>> call,
                                                     final Endpoint remote,
-                                                    final int retries) {
+                                                    final int retries,
+                                                    final RetryPolicy retryPolicy) {
         final SettableFuture<T> settable = SettableFuture.create();
-        startCallWithRetry(call, remote, settable, retries);
+        retryBudgets.getUnchecked(remote).deposit();
+        startCallWithRetry(call, remote, settable, retries, retryPolicy, 0);
         return settable;
     }
 
@@ -174,12 +310,20 @@ public class GrpcClient implements IMessagingClient {
     private <T> void startCallWithRetry(final Supplier<ListenableFuture<T>> call,
                                         final Endpoint remote,
                                         final SettableFuture<T> signal,
-                                        final int retries) {
+                                        final int retries,
+                                        final RetryPolicy retryPolicy,
+                                        final int attempt) {
         if (isShuttingDown.get() || Thread.currentThread().isInterrupted()) {
             signal.setException(new ShuttingDownException("GrpcClient is shutting down or has been interrupted"));
             return;
         }
-        final ListenableFuture<T> callFuture = call.get();
+        final ListenableFuture<T> callFuture;
+        try {
+            callFuture = call.get();
+        } catch (final ShuttingDownException e) {
+            signal.setException(e);
+            return;
+        }
         Futures.addCallback(callFuture, new FutureCallback<T>() {
             @Override
             public void onSuccess(@Nullable final T result) {
@@ -188,19 +332,25 @@ public class GrpcClient implements IMessagingClient {
 
             @Override
             public void onFailure(final Throwable throwable) {
-                LOG.trace("Retrying call {}");
-                handleFailure(call, remote, signal, retries, throwable);
+                LOG.trace("Call to {} failed with {} retries left", remote, retries);
+                handleFailure(call, remote, signal, retries, retryPolicy, attempt, throwable);
             }
         }, backgroundExecutor);
     }
 
     /**
      * Adapted from https://github.com/spotify/futures-extra/.../AsyncRetrier.java
+     *
+     * Retries are delayed according to the retry policy of the message, and are only sent while the
+     * destination's retry budget allows it, so that senders do not flood a peer that has failed.
      */
+    @SuppressWarnings("FutureReturnValueIgnored")
     private <T> void handleFailure(final Supplier<ListenableFuture<T>> code,
                                    final Endpoint remote,
                                    final SettableFuture<T> future,
                                    final int retries,
+                                   final RetryPolicy retryPolicy,
+                                   final int attempt,
                                    final Throwable t) {
         // GRPC returns an UNAVAILABLE error when the TCP connection breaks and there is no way to recover
         // from it . We therefore shutdown the channel, and subsequent calls will try to re-establish it.
@@ -209,19 +359,33 @@ public class GrpcClient implements IMessagingClient {
             channelMap.invalidate(remote);
         }
 
-        if (retries > 0) {
-            startCallWithRetry(code, remote, future, retries - 1);
-        } else {
+        if (retries <= 0 || !retryBudgets.getUnchecked(remote).tryWithdraw()) {
             future.setException(t);
+            return;
+        }
+        final long backoffMs = retryPolicy.getBackoffMs(attempt + 1);
+        if (backoffMs == 0) {
+            startCallWithRetry(code, remote, future, retries - 1, retryPolicy, attempt + 1);
+            return;
+        }
+        try {
+            scheduledExecutor.schedule(() -> startCallWithRetry(code, remote, future, retries - 1, retryPolicy,
+                                                                attempt + 1),
+                                       backoffMs, TimeUnit.MILLISECONDS);
+        } catch (final RejectedExecutionException e) {
+            future.setException(new ShuttingDownException("GrpcClient is shutting down"));
         }
     }
 
     private MembershipServiceFutureStub getFutureStub(final Endpoint remote) {
+        return MembershipServiceGrpc.newFutureStub(getCachedChannel(remote));
+    }
+
+    private Channel getCachedChannel(final Endpoint remote) {
         if (isShuttingDown.get()) {
             throw new ShuttingDownException("GrpcClient is shutting down");
         }
-        final Channel channel = channelMap.getUnchecked(remote);
-        return MembershipServiceGrpc.newFutureStub(channel);
+        return channelMap.getUnchecked(remote);
     }
 
     private void shutdownChannel(final ManagedChannelImpl channel) {
@@ -245,6 +409,7 @@ public class GrpcClient implements IMessagingClient {
                     .forAddress(remote.getHostname(), remote.getPort())
                     .executor(grpcExecutor)
                     .eventLoopGroup(eventLoopGroup)
+                    .channelType(channelType)
                     .usePlaintext(true)
                     .idleTimeout(10, TimeUnit.SECONDS)
                     .withOption(ChannelOption.SO_REUSEADDR, true)
@@ -273,9 +438,26 @@ public class GrpcClient implements IMessagingClient {
         }
     }
 
+    /**
+     * Selects the retry policy for a message. Backoffs never exceed the timeout for the message, so that a
+     * retry waits at most as long as the call it replaces did.
+     */
+    private RetryPolicy getRetryPolicyForMessage(final RapidRequest msg) {
+        switch (msg.getContentCase()) {
+            case PROBEMESSAGE:
+                return new RetryPolicy(settings.getGrpcProbeRetryBaseDelayMs(), settings.getGrpcProbeTimeoutMs());
+            case JOINMESSAGE:
+                return new RetryPolicy(settings.getGrpcJoinRetryBaseDelayMs(), settings.getGrpcJoinTimeoutMs());
+            default:
+                return new RetryPolicy(settings.getGrpcRetryBaseDelayMs(), settings.getGrpcTimeoutMs());
+        }
+    }
+
     public interface ISettings {
         boolean getUseInProcessTransport();
 
+        boolean getUseStreamingTransport();
+
         int getGrpcTimeoutMs();
 
         int getGrpcDefaultRetries();
@@ -283,6 +465,318 @@ public class GrpcClient implements IMessagingClient {
         int getGrpcJoinTimeoutMs();
 
         int getGrpcProbeTimeoutMs();
+
+        int getGrpcRetryBaseDelayMs();
+
+        int getGrpcJoinRetryBaseDelayMs();
+
+        int getGrpcProbeRetryBaseDelayMs();
+
+        double getGrpcRetryBudgetRatio();
+
+        int getGrpcRetryBudgetBurst();
+    }
+
+    /**
+     * Capped exponential backoff with full jitter: the n-th retry of a call waits for a random delay between
+     * zero and min(maxDelayMs, baseDelayMs * 2^(n - 1)), so that senders whose calls failed together do not
+     * retry in lockstep.
+     */
+    private static final class RetryPolicy {
+        private static final RetryPolicy IMMEDIATE = new RetryPolicy(0, 0);
+        private static final int MAX_DOUBLINGS = 30;
+        private final int baseDelayMs;
+        private final int maxDelayMs;
+
+        RetryPolicy(final int baseDelayMs, final int maxDelayMs) {
+            this.baseDelayMs = baseDelayMs;
+            this.maxDelayMs = maxDelayMs;
+        }
+
+        long getBackoffMs(final int attempt) {
+            if (baseDelayMs <= 0 || maxDelayMs <= 0) {
+                return 0;
+            }
+            final long ceiling = Math.min(maxDelayMs, (long) baseDelayMs << Math.min(attempt - 1, MAX_DOUBLINGS));
+            return ThreadLocalRandom.current().nextLong(ceiling + 1);
+        }
+    }
+
+    /**
+     * Limits the retries sent to a destination to a fraction of the calls made to it. Every call deposits
+     * {@code ratio} into the budget and every retry withdraws one from it. The balance starts at, and never
+     * exceeds, {@code burst} retries, so a peer that fails while calls to it are in flight gets at most a
+     * burst of retries, after which retries only follow fresh calls.
+     */
+    private static final class RetryBudget {
+        private final double ratio;
+        private final double burst;
+        @GuardedBy("this") private double balance;
+
+        RetryBudget(final double ratio, final int burst) {
+            this.ratio = ratio;
+            this.burst = burst;
+            this.balance = burst;
+        }
+
+        synchronized void deposit() {
+            balance = Math.min(burst, balance + ratio);
+        }
+
+        synchronized boolean tryWithdraw() {
+            if (balance < 1) {
+                return false;
+            }
+            balance -= 1;
+            return true;
+        }
+    }
+
+    /**
+     * Marshals requests that were serialized ahead of time. Streams over the same array are handed to every
+     * channel, and report their length so that the transport can frame them without copying them first.
+     */
+    private static final class SerializedRequestMarshaller implements MethodDescriptor.Marshaller<byte[]> {
+        @Override
+        public InputStream stream(final byte[] value) {
+            return new SerializedMessageStream(value);
+        }
+
+        @Override
+        public byte[] parse(final InputStream stream) {
+            try {
+                return ByteStreams.toByteArray(stream);
+            } catch (final IOException e) {
+                throw Status.INTERNAL.withCause(e).asRuntimeException();
+            }
+        }
+    }
+
+    /**
+     * A request that was serialized ahead of time, and the ID under which it is sent on a request stream.
+     */
+    private static final class StreamedRequest {
+        private final long requestId;
+        private final byte[] serializedRequest;
+        private final boolean oneWay;
+
+        StreamedRequest(final long requestId, final byte[] serializedRequest, final boolean oneWay) {
+            this.requestId = requestId;
+            this.serializedRequest = serializedRequest;
+            this.oneWay = oneWay;
+        }
+    }
+
+    /**
+     * Marshals StreamedRequests into the wire format of StreamedRapidRequest. The serialized request is copied
+     * into the envelope as is, so that it is not encoded again for every recipient.
+     */
+    private static final class StreamedRequestMarshaller implements MethodDescriptor.Marshaller<StreamedRequest> {
+        @Override
+        public InputStream stream(final StreamedRequest value) {
+            final byte[] bytes = new byte[
+                    CodedOutputStream.computeInt64Size(StreamedRapidRequest.REQUESTID_FIELD_NUMBER, value.requestId)
+                    + CodedOutputStream.computeByteArraySize(StreamedRapidRequest.REQUEST_FIELD_NUMBER,
+                                                            value.serializedRequest)
+                    + (value.oneWay ? CodedOutputStream.computeBoolSize(StreamedRapidRequest.ONEWAY_FIELD_NUMBER,
+                                                                        true) : 0)];
+            final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+            try {
+                output.writeInt64(StreamedRapidRequest.REQUESTID_FIELD_NUMBER, value.requestId);
+                output.writeByteArray(StreamedRapidRequest.REQUEST_FIELD_NUMBER, value.serializedRequest);
+                if (value.oneWay) {
+                    output.writeBool(StreamedRapidRequest.ONEWAY_FIELD_NUMBER, true);
+                }
+                output.checkNoSpaceLeft();
+            } catch (final IOException e) {
+                throw Status.INTERNAL.withCause(e).asRuntimeException();
+            }
+            return new SerializedMessageStream(bytes);
+        }
+
+        @Override
+        public StreamedRequest parse(final InputStream stream) {
+            try {
+                final StreamedRapidRequest request = StreamedRapidRequest.parseFrom(stream);
+                return new StreamedRequest(request.getRequestId(), request.getRequest().toByteArray(),
+                                           request.getOneWay());
+            } catch (final IOException e) {
+                throw Status.INTERNAL.withCause(e).asRuntimeException();
+            }
+        }
+    }
+
+    /**
+     * A long-lived sendRequestStream call to a single remote. Every request is sent with a new ID, and completed
+     * by the response that comes back on the stream with the same ID. Requests that get no response within their
+     * timeout fail with DEADLINE_EXCEEDED, like unary calls do.
+     *
+     * The stream only takes a request when gRPC's flow control reports that the transport is ready for it and
+     * fewer than MAX_PENDING_STREAMED_REQUESTS requests await a response. Otherwise, the caller falls back to a
+     * unary call, so that a slow remote does not make requests queue up in the client.
+     */
+    private static final class RequestStream implements ClientResponseObserver<StreamedRequest,
+                                                                                StreamedRapidResponse> {
+        private final GrpcClient client;
+        private final Channel channel;
+        private final AtomicLong nextRequestId = new AtomicLong(0);
+        private final Map<Long, SettableFuture<RapidResponse>> pendingRequests = new ConcurrentHashMap<>();
+        @GuardedBy("this") @Nullable private ClientCallStreamObserver<StreamedRequest> requestObserver = null;
+        private volatile boolean isClosed = false;
+
+        private RequestStream(final GrpcClient client, final Channel channel) {
+            this.client = client;
+            this.channel = channel;
+        }
+
+        static RequestStream open(final GrpcClient client, final Channel channel) {
+            final RequestStream stream = new RequestStream(client, channel);
+            ClientCalls.asyncBidiStreamingCall(channel.newCall(METHOD_SEND_REQUEST_STREAM, CallOptions.DEFAULT),
+                                               stream);
+            return stream;
+        }
+
+        @Override
+        public synchronized void beforeStart(final ClientCallStreamObserver<StreamedRequest> requestObserver) {
+            this.requestObserver = requestObserver;
+        }
+
+        boolean isClosed() {
+            return isClosed;
+        }
+
+        /**
+         * Sends a serialized request on the stream.
+         *
+         * @return A future for the response, or null if the stream cannot take the request.
+         */
+        @Nullable
+        ListenableFuture<RapidResponse> send(final byte[] serializedMsg, final int timeoutMs) {
+            final SettableFuture<RapidResponse> response = SettableFuture.create();
+            final ScheduledFuture<?> timeout;
+            try {
+                timeout = client.scheduledExecutor.schedule(() ->
+                        response.setException(Status.DEADLINE_EXCEEDED.asRuntimeException()),
+                        timeoutMs, TimeUnit.MILLISECONDS);
+            } catch (final RejectedExecutionException e) {
+                return null;
+            }
+            final long requestId = nextRequestId.getAndIncrement();
+            synchronized (this) {
+                if (isClosed || requestObserver == null || !requestObserver.isReady()
+                        || pendingRequests.size() >= MAX_PENDING_STREAMED_REQUESTS) {
+                    timeout.cancel(false);
+                    return null;
+                }
+                pendingRequests.put(requestId, response);
+                requestObserver.onNext(new StreamedRequest(requestId, serializedMsg, false));
+            }
+            response.addListener(() -> {
+                pendingRequests.remove(requestId);
+                timeout.cancel(false);
+            }, MoreExecutors.directExecutor());
+            return response;
+        }
+
+        /**
+         * Sends a serialized request on the stream, for which the remote sends no response.
+         *
+         * @return false if the stream cannot take the request.
+         */
+        synchronized boolean sendOneWay(final byte[] serializedMsg) {
+            if (isClosed || requestObserver == null || !requestObserver.isReady()) {
+                return false;
+            }
+            requestObserver.onNext(new StreamedRequest(0, serializedMsg, true));
+            return true;
+        }
+
+        /**
+         * Half-closes the stream. Requests that were already sent may still receive their responses.
+         */
+        synchronized void close() {
+            if (!isClosed) {
+                isClosed = true;
+                if (requestObserver != null) {
+                    requestObserver.onCompleted();
+                }
+            }
+        }
+
+        @Override
+        public void onNext(final StreamedRapidResponse streamedResponse) {
+            final SettableFuture<RapidResponse> response = pendingRequests.remove(streamedResponse.getRequestId());
+            if (response != null) {
+                response.set(streamedResponse.getResponse());
+            }
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            LOG.trace("Request stream failed", throwable);
+            isClosed = true;
+            failPendingRequests(throwable);
+        }
+
+        @Override
+        public void onCompleted() {
+            isClosed = true;
+            failPendingRequests(Status.CANCELLED.withDescription("Request stream closed").asRuntimeException());
+        }
+
+        private void failPendingRequests(final Throwable throwable) {
+            for (final Long requestId: pendingRequests.keySet()) {
+                final SettableFuture<RapidResponse> response = pendingRequests.remove(requestId);
+                if (response != null) {
+                    response.setException(throwable);
+                }
+            }
+        }
+    }
+
+    /**
+     * Drops the response to a one-way message that was sent as a unary call. Like failed calls with retries,
+     * a broken connection invalidates the channel to the remote.
+     */
+    private final class OneWayResponseObserver implements StreamObserver<RapidResponse> {
+        private final Endpoint remote;
+
+        OneWayResponseObserver(final Endpoint remote) {
+            this.remote = remote;
+        }
+
+        @Override
+        public void onNext(final RapidResponse response) {
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            if (throwable instanceof StatusRuntimeException
+                && ((StatusRuntimeException) throwable).getStatus().getCode().equals(Status.Code.UNAVAILABLE)) {
+                channelMap.invalidate(remote);
+            }
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    /**
+     * Streams a message that was serialized ahead of time. Also used by GrpcServer for shared responses.
+     */
+    static final class SerializedMessageStream extends ByteArrayInputStream implements KnownLength, Drainable {
+        SerializedMessageStream(final byte[] bytes) {
+            super(bytes);
+        }
+
+        @Override
+        public synchronized int drainTo(final OutputStream target) throws IOException {
+            final int length = count - pos;
+            target.write(buf, pos, length);
+            pos = count;
+            return length;
+        }
     }
 
     public static class ShuttingDownException extends RuntimeException {
@@ -13,28 +13,49 @@
 
 package com.vrg.rapid.messaging.impl;
 
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.protobuf.CodedOutputStream;
 import com.vrg.rapid.MembershipService;
 import com.vrg.rapid.SharedResources;
 import com.vrg.rapid.messaging.IMessagingServer;
 import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.JoinResponse;
+import com.vrg.rapid.pb.JoinStatusCode;
 import com.vrg.rapid.pb.MembershipServiceGrpc;
 import com.vrg.rapid.pb.NodeStatus;
 import com.vrg.rapid.pb.ProbeResponse;
 import com.vrg.rapid.pb.RapidRequest;
 import com.vrg.rapid.pb.RapidResponse;
+import com.vrg.rapid.pb.StreamedRapidRequest;
+import com.vrg.rapid.pb.StreamedRapidResponse;
+import io.grpc.MethodDescriptor;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerServiceDefinition;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.inprocess.InProcessServerBuilder;
 import io.grpc.netty.NettyServerBuilder;
+import io.grpc.protobuf.ProtoUtils;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.ServerCalls;
 import io.grpc.stub.StreamObserver;
 import io.netty.channel.EventLoopGroup;
+import io.netty.channel.socket.ServerSocketChannel;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
 import java.io.IOException;
+import java.io.InputStream;
 import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 
@@ -42,10 +63,30 @@ import java.util.concurrent.TimeUnit;
 /**
  * gRPC server object. It defers receiving messages until it is ready to
  * host a MembershipService object.
+ *
+ * MembershipService hands the same SAFE_TO_JOIN response, which carries the whole configuration, to every
+ * node that joins a given configuration. The server encodes that response once, and copies the encoded
+ * bytes to each joiner instead of encoding the member list and metadata again for every one of them.
  */
 public class GrpcServer extends MembershipServiceGrpc.MembershipServiceImplBase implements IMessagingServer {
+    private static final Logger LOG = LoggerFactory.getLogger(GrpcServer.class);
+    // Same RPCs as MembershipService/sendRequest and MembershipService/sendRequestStream, but shared responses
+    // are written from their cached encoding
+    private static final MethodDescriptor<RapidRequest, RapidResponse> METHOD_SEND_REQUEST =
+            MembershipServiceGrpc.METHOD_SEND_REQUEST.toBuilder(
+                    ProtoUtils.marshaller(RapidRequest.getDefaultInstance()), new ResponseMarshaller()).build();
+    private static final MethodDescriptor<StreamedRapidRequest, StreamedRapidResponse> METHOD_SEND_REQUEST_STREAM =
+            MembershipServiceGrpc.METHOD_SEND_REQUEST_STREAM.toBuilder(
+                    ProtoUtils.marshaller(StreamedRapidRequest.getDefaultInstance()),
+                    new StreamedResponseMarshaller()).build();
+    private static final int MAX_QUEUED_RESPONSES = 1024;
+    // Encoded shared responses, keyed by identity, for as long as MembershipService holds on to the response
+    private static final Cache<RapidResponse, byte[]> ENCODED_RESPONSES = CacheBuilder.newBuilder()
+                                                                                   .weakKeys()
+                                                                                   .build();
     private final ExecutorService grpcExecutor;
     @Nullable private final EventLoopGroup eventLoopGroup;
+    private final Class<? extends ServerSocketChannel> channelType;
     private static final RapidResponse BOOTSTRAPPING_MESSAGE =
             RapidResponse.newBuilder().setProbeResponse(ProbeResponse.newBuilder()
                                                         .setStatus(NodeStatus.BOOTSTRAPPING).build()).build();
@@ -62,6 +103,7 @@ public class GrpcServer extends MembershipServiceGrpc.MembershipServiceImplBase
         this.address = address;
         this.grpcExecutor = sharedResources.getServerExecutor();
         this.eventLoopGroup = useInProcessTransport ? null : sharedResources.getEventLoopGroup();
+        this.channelType = sharedResources.getServerChannelType();
         this.useInProcessServer = useInProcessTransport;
     }
 
@@ -91,6 +133,60 @@ public class GrpcServer extends MembershipServiceGrpc.MembershipServiceImplBase
         }
     }
 
+    /**
+     * Defined in rapid.proto. Every request on the stream is handled as if it had arrived through
+     * sendRequest(), and its response is written back to the stream under the request's ID. One-way
+     * requests are handed to sendOneWayRequest() instead, and get no response.
+     */
+    @Override
+    public StreamObserver<StreamedRapidRequest> sendRequestStream(
+                                                    final StreamObserver<StreamedRapidResponse> responseObserver) {
+        final ResponseStream responseStream = new ResponseStream(responseObserver);
+        return new StreamObserver<StreamedRapidRequest>() {
+            @Override
+            public void onNext(final StreamedRapidRequest request) {
+                if (request.getOneWay()) {
+                    sendOneWayRequest(request.getRequest());
+                    return;
+                }
+                sendRequest(request.getRequest(), new StreamedResponseObserver(request.getRequestId(),
+                                                                               responseStream));
+            }
+
+            @Override
+            public void onError(final Throwable throwable) {
+                responseStream.abort();
+            }
+
+            @Override
+            public void onCompleted() {
+                responseStream.close();
+            }
+        };
+    }
+
+    /**
+     * Handles a request whose sender expects no response. Requests that arrive before the membership
+     * service is ready are dropped, including probes, since nobody reads the BOOTSTRAPPING status.
+     */
+    @SuppressWarnings("FutureReturnValueIgnored")
+    protected void sendOneWayRequest(final RapidRequest rapidRequest) {
+        if (membershipService != null) {
+            membershipService.handleMessage(rapidRequest);
+        }
+    }
+
+    /**
+     * Binds the RPCs with the marshallers that write shared responses from their cached encoding.
+     */
+    @Override
+    public ServerServiceDefinition bindService() {
+        return ServerServiceDefinition.builder(MembershipServiceGrpc.SERVICE_NAME)
+                .addMethod(METHOD_SEND_REQUEST, ServerCalls.asyncUnaryCall(this::sendRequest))
+                .addMethod(METHOD_SEND_REQUEST_STREAM, ServerCalls.asyncBidiStreamingCall(this::sendRequestStream))
+                .build();
+    }
+
     /**
      * Invoked by the bootstrap protocol when it has a membership service object
      * ready. Until this method is called, the GrpcServer will not have its gRPC service
@@ -134,7 +230,9 @@ public class GrpcServer extends MembershipServiceGrpc.MembershipServiceImplBase
                     .start();
         } else {
             server = NettyServerBuilder.forAddress(new InetSocketAddress(address.getHostname(), address.getPort()))
+                    .bossEventLoopGroup(eventLoopGroup)
                     .workerEventLoopGroup(eventLoopGroup)
+                    .channelType(channelType)
                     .addService(this)
                     .executor(grpcExecutor)
                     .build()
@@ -145,6 +243,180 @@ public class GrpcServer extends MembershipServiceGrpc.MembershipServiceImplBase
         Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
     }
 
+    /**
+     * The response side of a sendRequestStream call. Responses are produced concurrently, but a gRPC stream
+     * only accepts one message at a time, and none after the call has ended.
+     *
+     * Responses are only written while gRPC's flow control reports that the transport is ready for them. The
+     * others wait in a queue that is drained from the stream's onReady handler. If a response arrives while
+     * MAX_QUEUED_RESPONSES responses are waiting, the client is not keeping up. The stream then fails with
+     * RESOURCE_EXHAUSTED, so that the client fails the requests pending on it right away and retries them,
+     * instead of waiting for their deadlines, and responses do not pile up in the server.
+     */
+    private static final class ResponseStream {
+        private final ServerCallStreamObserver<StreamedRapidResponse> responseObserver;
+        @GuardedBy("this") private final Deque<StreamedRapidResponse> queuedResponses = new ArrayDeque<>();
+        @GuardedBy("this") private boolean isHalfClosed = false;
+        @GuardedBy("this") private boolean isClosed = false;
+
+        ResponseStream(final StreamObserver<StreamedRapidResponse> responseObserver) {
+            this.responseObserver = (ServerCallStreamObserver<StreamedRapidResponse>) responseObserver;
+            this.responseObserver.setOnReadyHandler(this::drain);
+        }
+
+        synchronized void send(final long requestId, final RapidResponse response) {
+            if (isClosed || isHalfClosed) {
+                return;
+            }
+            if (queuedResponses.size() >= MAX_QUEUED_RESPONSES) {
+                LOG.warn("Failing a response stream with {} queued responses", queuedResponses.size());
+                abort();
+                responseObserver.onError(Status.RESOURCE_EXHAUSTED
+                                               .withDescription("Too many queued responses")
+                                               .asRuntimeException());
+                return;
+            }
+            queuedResponses.add(StreamedRapidResponse.newBuilder()
+                                                     .setRequestId(requestId)
+                                                     .setResponse(response)
+                                                     .build());
+            drain();
+        }
+
+        /**
+         * Completes the call once the responses that are already queued have been written.
+         */
+        synchronized void close() {
+            isHalfClosed = true;
+            drain();
+        }
+
+        synchronized void abort() {
+            isClosed = true;
+            queuedResponses.clear();
+        }
+
+        private synchronized void drain() {
+            try {
+                while (!isClosed && !queuedResponses.isEmpty() && responseObserver.isReady()) {
+                    responseObserver.onNext(queuedResponses.poll());
+                }
+                if (!isClosed && isHalfClosed && queuedResponses.isEmpty()) {
+                    isClosed = true;
+                    responseObserver.onCompleted();
+                }
+            } catch (final StatusRuntimeException e) {
+                // The client cancelled the call
+                abort();
+            }
+        }
+    }
+
+    /**
+     * Hands the response to a single streamed request back to the stream it arrived on.
+     */
+    private static final class StreamedResponseObserver implements StreamObserver<RapidResponse> {
+        private final long requestId;
+        private final ResponseStream responseStream;
+
+        StreamedResponseObserver(final long requestId, final ResponseStream responseStream) {
+            this.requestId = requestId;
+            this.responseStream = responseStream;
+        }
+
+        @Override
+        public void onNext(final RapidResponse response) {
+            responseStream.send(requestId, response);
+        }
+
+        @Override
+        public void onError(final Throwable throwable) {
+            // The client times the request out
+        }
+
+        @Override
+        public void onCompleted() {
+        }
+    }
+
+    /**
+     * Returns the cached encoding of {@code response} if it is shared between joiners, encoding it on first
+     * use, or null if the response is specific to its request. Only SAFE_TO_JOIN responses that carry the
+     * whole configuration are shared. Responses that carry a delta depend on the joiner's known configuration.
+     */
+    @Nullable
+    private static byte[] getSharedEncoding(final RapidResponse response) {
+        if (response.getContentCase() != RapidResponse.ContentCase.JOINRESPONSE) {
+            return null;
+        }
+        final JoinResponse joinResponse = response.getJoinResponse();
+        if (joinResponse.getStatusCode() != JoinStatusCode.SAFE_TO_JOIN || joinResponse.getBaseConfigurationId() != 0) {
+            return null;
+        }
+        byte[] encoded = ENCODED_RESPONSES.getIfPresent(response);
+        if (encoded == null) {
+            // Racing callers may both encode the response, and end up with identical bytes
+            encoded = response.toByteArray();
+            ENCODED_RESPONSES.put(response, encoded);
+        }
+        return encoded;
+    }
+
+    /**
+     * Marshals RapidResponses, writing shared responses from their cached encoding.
+     */
+    private static final class ResponseMarshaller implements MethodDescriptor.Marshaller<RapidResponse> {
+        private final MethodDescriptor.Marshaller<RapidResponse> protoMarshaller =
+                ProtoUtils.marshaller(RapidResponse.getDefaultInstance());
+
+        @Override
+        public InputStream stream(final RapidResponse value) {
+            final byte[] encoded = getSharedEncoding(value);
+            return encoded != null ? new GrpcClient.SerializedMessageStream(encoded) : protoMarshaller.stream(value);
+        }
+
+        @Override
+        public RapidResponse parse(final InputStream stream) {
+            return protoMarshaller.parse(stream);
+        }
+    }
+
+    /**
+     * Marshals StreamedRapidResponses. If the response is shared, its cached encoding is copied into the
+     * envelope as is, in the same way as GrpcClient frames pre-serialized requests.
+     */
+    private static final class StreamedResponseMarshaller
+                                                    implements MethodDescriptor.Marshaller<StreamedRapidResponse> {
+        private final MethodDescriptor.Marshaller<StreamedRapidResponse> protoMarshaller =
+                ProtoUtils.marshaller(StreamedRapidResponse.getDefaultInstance());
+
+        @Override
+        public InputStream stream(final StreamedRapidResponse value) {
+            final byte[] encoded = getSharedEncoding(value.getResponse());
+            if (encoded == null) {
+                return protoMarshaller.stream(value);
+            }
+            final byte[] bytes = new byte[
+                    CodedOutputStream.computeInt64Size(StreamedRapidResponse.REQUESTID_FIELD_NUMBER,
+                                                       value.getRequestId())
+                    + CodedOutputStream.computeByteArraySize(StreamedRapidResponse.RESPONSE_FIELD_NUMBER, encoded)];
+            final CodedOutputStream output = CodedOutputStream.newInstance(bytes);
+            try {
+                output.writeInt64(StreamedRapidResponse.REQUESTID_FIELD_NUMBER, value.getRequestId());
+                output.writeByteArray(StreamedRapidResponse.RESPONSE_FIELD_NUMBER, encoded);
+                output.checkNoSpaceLeft();
+            } catch (final IOException e) {
+                throw Status.INTERNAL.withCause(e).asRuntimeException();
+            }
+            return new GrpcClient.SerializedMessageStream(bytes);
+        }
+
+        @Override
+        public StreamedRapidResponse parse(final InputStream stream) {
+            return protoMarshaller.parse(stream);
+        }
+    }
+
     // Callbacks
     private static class ResponseCallback implements FutureCallback<RapidResponse> {
         private final StreamObserver<RapidResponse> responseObserver;
@@ -14,22 +14,35 @@
 package com.vrg.rapid;
 
 import com.google.common.net.HostAndPort;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.Metadata;
 import com.google.protobuf.ByteString;
+import com.vrg.rapid.messaging.IBroadcasterFactory;
+import com.vrg.rapid.messaging.impl.ExpanderBroadcaster;
+import com.vrg.rapid.messaging.impl.GossipBroadcaster;
 import com.vrg.rapid.messaging.impl.GrpcClient;
+import com.vrg.rapid.pb.JoinResponse;
+import com.vrg.rapid.pb.JoinStatusCode;
 import com.vrg.rapid.pb.RapidRequest;
+import com.vrg.rapid.pb.RapidResponse;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.junit.rules.TestWatcher;
 import org.junit.runner.Description;
 
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.nio.charset.Charset;
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -48,6 +61,7 @@ import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
@@ -63,6 +77,8 @@ public class ClusterTest {
     private final Map<Endpoint, List<ClientInterceptors.Delayer>> clientInterceptors = new ConcurrentHashMap<>();
     private boolean useStaticFd = false;
     private boolean addMetadata = true;
+    @Nullable private IBroadcasterFactory broadcasterFactory = null;
+    @Nullable private SharedResources sharedResources = null;
     @Nullable private Random random = null;
     private long seed;
     private int basePort;
@@ -77,6 +93,9 @@ public class ClusterTest {
         NETTY_LOGGER.setLevel(Level.OFF);
     }
 
+    @Rule
+    public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Rule
     public final TestWatcher testWatcher = new TestWatcher() {
         @Override
@@ -102,6 +121,8 @@ public class ClusterTest {
         settings.setFailureDetectorIntervalInMs(1000);
         useStaticFd = false;
         addMetadata = true;
+        broadcasterFactory = null;
+        sharedResources = null;
         staticFds.clear();
         serverInterceptors.clear();
         clientInterceptors.clear();
@@ -112,6 +133,9 @@ public class ClusterTest {
         for (final Cluster cluster: instances.values()) {
             cluster.shutdown();
         }
+        if (sharedResources != null) {
+            sharedResources.shutdown();
+        }
     }
 
 
@@ -205,6 +229,21 @@ public class ClusterTest {
         waitAndVerifyAgreement(numNodesPhase1 + numNodesPhase2, 10, 1000);
     }
 
+    /**
+     * Same as fiftyNodesJoinTwentyNodeCluster(), but all nodes run on a single set of executors.
+     */
+    @Test(timeout = 30000)
+    public void fiftyNodesJoinTwentyNodeClusterWithSharedResources() throws IOException, InterruptedException {
+        sharedResources = new SharedResources(Utils.hostFromParts("127.0.0.1", basePort), settings);
+        final int numNodesPhase1 = 20;
+        final int numNodesPhase2 = 50;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodesPhase1, seedEndpoint);
+        waitAndVerifyAgreement(numNodesPhase1, 10, 100);
+        extendCluster(numNodesPhase2, seedEndpoint);
+        waitAndVerifyAgreement(numNodesPhase1 + numNodesPhase2, 10, 1000);
+    }
+
     /**
      * This test starts with a 4 node cluster. We then fail a single node to see if the monitoring mechanism
      * identifies the failing node and arrives at a decision to remove it.
@@ -267,6 +306,71 @@ public class ClusterTest {
         verifyNumClusterInstances(numNodes + phaseOneJoiners + phaseTwojoiners);
     }
 
+    /**
+     * Starts a 10 node cluster and joins another 10 nodes over Netty, with several event loop threads, bounded
+     * executor queues, and gRPC callbacks that run directly on the event loops.
+     */
+    @Test(timeout = 30000)
+    public void nodeJoinsNettyWithDirectExecutors() throws IOException, InterruptedException {
+        settings.setUseInProcessTransport(false);
+        settings.setEventLoopThreads(4);
+        settings.setBackgroundThreads(2);
+        settings.setExecutorQueueCapacity(64);
+        settings.setUseDirectExecutors(true);
+        final int numNodes = 10;
+        final int numJoiners = 10;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodes, seedEndpoint);
+        verifyCluster(numNodes);
+        extendCluster(numJoiners, seedEndpoint);
+        waitAndVerifyAgreement(numNodes + numJoiners, 20, 1000);
+        verifyNumClusterInstances(numNodes + numJoiners);
+    }
+
+    /**
+     * Starts a 10 node cluster and joins another 10 nodes over Netty's native epoll transport, or over NIO
+     * on platforms where epoll is unavailable.
+     */
+    @Test(timeout = 30000)
+    public void nodeJoinsNettyWithEpoll() throws IOException, InterruptedException {
+        settings.setUseInProcessTransport(false);
+        settings.setUseEpollTransport(true);
+        final int numNodes = 10;
+        final int numJoiners = 10;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodes, seedEndpoint);
+        verifyCluster(numNodes);
+        extendCluster(numJoiners, seedEndpoint);
+        waitAndVerifyAgreement(numNodes + numJoiners, 20, 1000);
+        verifyNumClusterInstances(numNodes + numJoiners);
+    }
+
+    /**
+     * Same as concurrentNodeJoinsNetty(), but members send requests to each other over request streams.
+     */
+    @Test(timeout = 30000)
+    public void concurrentNodeJoinsNettyWithStreaming() throws IOException, InterruptedException {
+        settings.setUseInProcessTransport(false);
+        settings.setUseStreamingTransport(true);
+        final int numNodes = 5;
+        final int phaseOneJoiners = 6;
+        final int phaseTwojoiners = 6;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodes, seedEndpoint);
+        verifyCluster(numNodes);
+        final Random r = new Random();
+
+        for (int i = 0; i < phaseOneJoiners / 2; i++) {
+            final List<Endpoint> keysAsArray = new ArrayList<>(instances.keySet());
+            extendCluster(2, keysAsArray.get(r.nextInt(instances.size())));
+        }
+        for (int i = 0; i < phaseTwojoiners; i++) {
+            extendCluster(1, seedEndpoint);
+        }
+        waitAndVerifyAgreement(numNodes + phaseOneJoiners + phaseTwojoiners, 20, 1000);
+        verifyNumClusterInstances(numNodes + phaseOneJoiners + phaseTwojoiners);
+    }
+
     /**
      * This test starts with a 50 node cluster. We then fail 12 nodes to see if the monitoring mechanism
      * identifies the crashed nodes, and arrives at a decision.
@@ -336,6 +440,62 @@ public class ClusterTest {
         verifyNumClusterInstances(numNodes);
     }
 
+    /**
+     * Same as failTenRandomNodes(), but members broadcast through gossip instead of sending to every member.
+     */
+    @Test(timeout = 30000)
+    public void failTenRandomNodesWithGossip() throws IOException, InterruptedException {
+        useStaticFd = true;
+        broadcasterFactory = new GossipBroadcaster.Factory();
+        final int numNodes = 50;
+        final int numFailingNodes = 10;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodes, seedEndpoint);
+        verifyCluster(numNodes);
+        final Set<Endpoint> failingNodes = getRandomHosts(numFailingNodes);
+        staticFds.values().forEach(e -> e.addFailedNodes(failingNodes));
+        waitAndVerifyAgreement(numNodes - failingNodes.size(), 20, 1000);
+        verifyNumClusterInstances(numNodes);
+    }
+
+    /**
+     * Same as failTenRandomNodes(), but members broadcast over the K monitoring rings.
+     */
+    @Test(timeout = 30000)
+    public void failTenRandomNodesWithExpander() throws IOException, InterruptedException {
+        useStaticFd = true;
+        broadcasterFactory = new ExpanderBroadcaster.Factory();
+        final int numNodes = 50;
+        final int numFailingNodes = 10;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodes, seedEndpoint);
+        verifyCluster(numNodes);
+        final Set<Endpoint> failingNodes = getRandomHosts(numFailingNodes);
+        staticFds.values().forEach(e -> e.addFailedNodes(failingNodes));
+        waitAndVerifyAgreement(numNodes - failingNodes.size(), 20, 1000);
+        verifyNumClusterInstances(numNodes);
+    }
+
+    /**
+     * Same as failTenRandomNodes(), but once the cluster is up, batches of alerts are capped at a single
+     * message, so that every alert is broadcast as soon as it is enqueued. Batching stays on while the
+     * cluster bootstraps, because unbatched concurrent joins can lead to conflicting proposals.
+     */
+    @Test(timeout = 30000)
+    public void failTenRandomNodesWithoutBatching() throws IOException, InterruptedException {
+        useStaticFd = true;
+        final int numNodes = 50;
+        final int numFailingNodes = 10;
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        createCluster(numNodes, seedEndpoint);
+        verifyCluster(numNodes);
+        settings.setBatchingMaxMessages(1);
+        final Set<Endpoint> failingNodes = getRandomHosts(numFailingNodes);
+        staticFds.values().forEach(e -> e.addFailedNodes(failingNodes));
+        waitAndVerifyAgreement(numNodes - failingNodes.size(), 20, 1000);
+        verifyNumClusterInstances(numNodes);
+    }
+
     /**
      * This test starts with a 50 node cluster. We then randomly fail at most 10 randomly selected nodes.
      */
@@ -431,6 +591,121 @@ public class ClusterTest {
         }
     }
 
+    /**
+     * Shutdown a node and rejoin with the configuration it last knew, while other nodes join in the meantime.
+     * The monitors only send the changes since that configuration.
+     */
+    @Test(timeout = 30000)
+    public void testRejoinSingleNodeWithKnownConfiguration() throws IOException, InterruptedException {
+        useFastFailureDetectionTimeouts();
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        final Endpoint leavingEndpoint = Utils.hostFromParts("127.0.0.1", basePort + 1);
+        createCluster(10, seedEndpoint);
+
+        final Cluster leaving = instances.remove(leavingEndpoint);
+        final MembershipView.Configuration knownConfiguration = leaving.getConfiguration();
+        final Map<Endpoint, Metadata> knownMetadata = new HashMap<>();
+        leaving.getClusterMetadata().forEach((k, v) -> knownMetadata.put(Utils.hostFromString(k), v));
+        leaving.shutdown();
+        waitAndVerifyAgreement(9, 20, 500);
+        extendCluster(2, seedEndpoint);
+        waitAndVerifyAgreement(11, 20, 500);
+
+        final JoinResponseRecordingClient client = new JoinResponseRecordingClient(leavingEndpoint, settings);
+        final Cluster rejoined = buildCluster(leavingEndpoint)
+                                    .setMessagingClientAndServer(client, new TestingGrpcServer(leavingEndpoint,
+                                            Collections.emptyList(), settings.getUseInProcessTransport()))
+                                    .setKnownConfiguration(knownConfiguration, knownMetadata)
+                                    .join(seedEndpoint);
+        instances.put(leavingEndpoint, rejoined);
+        waitAndVerifyAgreement(12, 20, 500);
+        verifyClusterMetadata(12);
+        assertEquals(instances.get(seedEndpoint).getConfiguration().getConfigurationId(),
+                     rejoined.getConfiguration().getConfigurationId());
+
+        // The node left and rejoined, and two other nodes joined in the meantime
+        final List<JoinResponse> safeToJoin = client.getSafeToJoinResponses();
+        assertFalse(safeToJoin.isEmpty());
+        for (final JoinResponse response: safeToJoin) {
+            assertEquals(knownConfiguration.getConfigurationId(), response.getBaseConfigurationId());
+            assertEquals(Collections.singletonList(leavingEndpoint), response.getRemovedEndpointsList());
+            assertEquals(3, response.getEndpointsCount());
+            assertTrue(response.getEndpointsList().contains(leavingEndpoint));
+        }
+    }
+
+    /**
+     * Rejoin with a known configuration that does not match the one the monitors know under the same ID.
+     * The delta the monitors send does not yield the new configuration, and the node falls back to a full join.
+     */
+    @Test(timeout = 30000)
+    public void testRejoinWithMismatchedKnownConfigurationFallsBackToFullJoin()
+                                                                    throws IOException, InterruptedException {
+        useFastFailureDetectionTimeouts();
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        final Endpoint leavingEndpoint = Utils.hostFromParts("127.0.0.1", basePort + 1);
+        createCluster(10, seedEndpoint);
+
+        final Cluster leaving = instances.remove(leavingEndpoint);
+        final MembershipView.Configuration actual = leaving.getConfiguration();
+        leaving.shutdown();
+        waitAndVerifyAgreement(9, 20, 500);
+
+        // Same ID as the configuration the node knew, but missing a member
+        final List<Endpoint> endpoints = new ArrayList<>(actual.endpoints);
+        endpoints.remove(Utils.hostFromParts("127.0.0.1", basePort + 2));
+        final MembershipView.Configuration mismatched =
+                new MembershipView.Configuration(actual.nodeIds, endpoints, actual.getConfigurationId());
+        final JoinResponseRecordingClient client = new JoinResponseRecordingClient(leavingEndpoint, settings);
+        final Cluster rejoined = buildCluster(leavingEndpoint)
+                                    .setMessagingClientAndServer(client, new TestingGrpcServer(leavingEndpoint,
+                                            Collections.emptyList(), settings.getUseInProcessTransport()))
+                                    .setKnownConfiguration(mismatched, Collections.emptyMap())
+                                    .join(seedEndpoint);
+        instances.put(leavingEndpoint, rejoined);
+        waitAndVerifyAgreement(10, 20, 500);
+        assertEquals(instances.get(seedEndpoint).getConfiguration().getConfigurationId(),
+                     rejoined.getConfiguration().getConfigurationId());
+
+        final List<JoinResponse> safeToJoin = client.getSafeToJoinResponses();
+        assertTrue(safeToJoin.stream().anyMatch(response -> response.getBaseConfigurationId()
+                                                            == actual.getConfigurationId()));
+        assertTrue(safeToJoin.stream().anyMatch(response -> response.getBaseConfigurationId() == 0
+                                                            && response.getEndpointsCount() == 10));
+    }
+
+    /**
+     * Restart a node that persists membership snapshots. The restarted node picks up the snapshot left behind
+     * by its previous run as the base for its join.
+     */
+    @Test(timeout = 30000)
+    public void testRestartWithMembershipSnapshot() throws IOException, InterruptedException {
+        useFastFailureDetectionTimeouts();
+        final Endpoint seedEndpoint = Utils.hostFromParts("127.0.0.1", basePort);
+        final Endpoint restartingEndpoint = Utils.hostFromParts("127.0.0.1", basePort + 100);
+        final Path snapshotFile = temporaryFolder.getRoot().toPath().resolve("membership.snapshot");
+        createCluster(9, seedEndpoint);
+        final Cluster restarting = buildCluster(restartingEndpoint).setMembershipSnapshotFile(snapshotFile)
+                                                                   .join(seedEndpoint);
+        instances.put(restartingEndpoint, restarting);
+        waitAndVerifyAgreement(10, 20, 500);
+        waitForSnapshot(snapshotFile, restarting.getConfiguration().getConfigurationId());
+
+        instances.remove(restartingEndpoint).shutdown();
+        waitAndVerifyAgreement(9, 20, 500);
+        extendCluster(1, seedEndpoint);
+        waitAndVerifyAgreement(10, 20, 500);
+
+        final Cluster restarted = buildCluster(restartingEndpoint).setMembershipSnapshotFile(snapshotFile)
+                                                                  .join(seedEndpoint);
+        instances.put(restartingEndpoint, restarted);
+        waitAndVerifyAgreement(11, 20, 500);
+        verifyClusterMetadata(11);
+        final long configurationId = instances.get(seedEndpoint).getConfiguration().getConfigurationId();
+        assertEquals(configurationId, restarted.getConfiguration().getConfigurationId());
+        waitForSnapshot(snapshotFile, configurationId);
+    }
+
     /**
      * Shutdown a node and rejoin before the failure detectors kick it out
      */
@@ -672,6 +947,21 @@ public class ClusterTest {
         }
     }
 
+    /**
+     * Wait for the snapshot in {@code snapshotFile} to reach configuration {@code configurationId}.
+     */
+    private void waitForSnapshot(final Path snapshotFile, final long configurationId)
+            throws IOException, InterruptedException {
+        for (int tries = 0; tries < 20; tries++) {
+            final MembershipSnapshot snapshot = MembershipSnapshot.read(snapshotFile);
+            if (snapshot != null && snapshot.configuration.getConfigurationId() == configurationId) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        fail();
+    }
+
     /**
      * Verify the number of Cluster instances that managed to start.
      *
@@ -732,6 +1022,9 @@ public class ClusterTest {
     // Helper to use static-failure-detectors and inject interceptors
     private Cluster.Builder buildCluster(final Endpoint endpoint) {
         Cluster.Builder builder = new Cluster.Builder(endpoint).useSettings(settings);
+        if (sharedResources != null) {
+            builder = builder.useSharedResources(sharedResources);
+        }
         if (useStaticFd) {
             final StaticFailureDetector.Factory fdFactory = new StaticFailureDetector.Factory(new HashSet<>());
             builder = builder.setLinkFailureDetectorFactory(fdFactory);
@@ -750,6 +1043,9 @@ public class ClusterTest {
                             Collections.emptyList(),
                             settings.getUseInProcessTransport()));
         }
+        if (broadcasterFactory != null) {
+            builder = builder.setBroadcasterFactory(broadcasterFactory);
+        }
         if (addMetadata) {
             final ByteString byteString = ByteString.copyFrom(endpoint.toString(), Charset.defaultCharset());
             builder = builder.setMetadata(Collections.singletonMap("Key", byteString));
@@ -784,4 +1080,34 @@ public class ClusterTest {
         settings.setGrpcProbeTimeoutMs(10);
         settings.setFailureDetectorIntervalInMs(50);
     }
-}
\ No newline at end of file
+
+    /**
+     * Records the SAFE_TO_JOIN responses that a joining node receives.
+     */
+    private static final class JoinResponseRecordingClient extends GrpcClient {
+        private final List<JoinResponse> safeToJoinResponses = Collections.synchronizedList(new ArrayList<>());
+
+        JoinResponseRecordingClient(final Endpoint address, final ISettings settings) {
+            super(address, settings);
+        }
+
+        @Override
+        public ListenableFuture<RapidResponse> sendMessage(final Endpoint remote, final RapidRequest msg) {
+            return Futures.transform(super.sendMessage(remote, msg), this::record, MoreExecutors.directExecutor());
+        }
+
+        List<JoinResponse> getSafeToJoinResponses() {
+            synchronized (safeToJoinResponses) {
+                return new ArrayList<>(safeToJoinResponses);
+            }
+        }
+
+        private RapidResponse record(@Nullable final RapidResponse response) {
+            if (response != null && response.getContentCase() == RapidResponse.ContentCase.JOINRESPONSE
+                    && response.getJoinResponse().getStatusCode() == JoinStatusCode.SAFE_TO_JOIN) {
+                safeToJoinResponses.add(response.getJoinResponse());
+            }
+            return response;
+        }
+    }
+}
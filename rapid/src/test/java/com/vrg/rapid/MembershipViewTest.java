@@ -15,18 +15,25 @@ package com.vrg.rapid;
 
 import com.google.common.collect.ImmutableSet;
 import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.JoinStatusCode;
 import com.vrg.rapid.pb.NodeId;
 import org.junit.Test;
 
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.function.ToLongFunction;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
@@ -497,4 +504,317 @@ public class MembershipViewTest {
         }
         assertEquals(iter1.next(), iter2.next());
     }
-}
\ No newline at end of file
+
+    /**
+     * Verify that monitoring relationships stay consistent with the rings across
+     * interleaved additions and deletions.
+     */
+    @Test
+    public void monitoringRelationshipsAfterChanges() {
+        final MembershipView mview = new MembershipView(K);
+        final int numNodes = 100;
+        for (int i = 0; i < numNodes; i++) {
+            mview.ringAdd(Utils.hostFromParts("127.0.0.1", i), Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        for (int i = 0; i < numNodes; i += 3) {
+            mview.ringDelete(Utils.hostFromParts("127.0.0.1", i));
+        }
+        assertEquals(numNodes - 34, mview.getMembershipSize());
+
+        for (int k = 0; k < K; k++) {
+            final List<Endpoint> ring = mview.getRing(k);
+            for (int i = 0; i < ring.size(); i++) {
+                final Endpoint node = ring.get(i);
+                final Endpoint successor = ring.get((i + 1) % ring.size());
+                final Endpoint predecessor = ring.get((i - 1 + ring.size()) % ring.size());
+                assertTrue(mview.isHostPresent(node));
+                assertEquals(successor, mview.getMonitorsOf(node).get(k));
+                assertEquals(predecessor, mview.getMonitoreesOf(node).get(k));
+                assertEquals(predecessor, mview.getExpectedMonitorsOf(node).get(k));
+            }
+        }
+
+        // Deleted nodes are expected to be monitored by their predecessors on each ring
+        final Endpoint deleted = Utils.hostFromParts("127.0.0.1", 0);
+        assertFalse(mview.isHostPresent(deleted));
+        final List<Endpoint> expectedMonitors = mview.getExpectedMonitorsOf(deleted);
+        assertEquals(K, expectedMonitors.size());
+        mview.ringAdd(deleted, Utils.nodeIdFromUUID(UUID.randomUUID()));
+        assertEquals(expectedMonitors, mview.getMonitoreesOf(deleted));
+    }
+
+    /**
+     * getRingNumbers() must report exactly the rings on which the monitoree is the monitor's predecessor.
+     */
+    @Test
+    public void ringNumbersMatchRingPositions() {
+        final MembershipView mview = new MembershipView(K);
+        final int numNodes = 5;
+        for (int i = 0; i < numNodes; i++) {
+            mview.ringAdd(Utils.hostFromParts("127.0.0.1", i), Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint monitor = Utils.hostFromParts("127.0.0.1", i);
+            int total = 0;
+            for (int j = 0; j < numNodes; j++) {
+                final Endpoint monitoree = Utils.hostFromParts("127.0.0.1", j);
+                final List<Integer> ringNumbers = mview.getRingNumbers(monitor, monitoree);
+                for (int k = 0; k < K; k++) {
+                    final List<Endpoint> ring = mview.getRing(k);
+                    final int position = ring.indexOf(monitor);
+                    final boolean isPredecessor = ring.get((position - 1 + numNodes) % numNodes).equals(monitoree);
+                    assertEquals(isPredecessor, ringNumbers.contains(k));
+                }
+                total += ringNumbers.size();
+            }
+            assertEquals(K, total);
+        }
+        final MembershipView single = new MembershipView(K);
+        final Endpoint node = Utils.hostFromParts("127.0.0.1", 0);
+        single.ringAdd(node, Utils.nodeIdFromUUID(UUID.randomUUID()));
+        assertTrue(single.getMonitorsOf(node).isEmpty());
+        assertTrue(single.getRingNumbers(node, node).isEmpty());
+    }
+
+    /**
+     * Rings must be ordered identically across processes, so verify that the ordering by cached
+     * ring hashes agrees with Utils.AddressComparator.
+     */
+    @Test
+    public void ringOrderMatchesAddressComparator() {
+        final MembershipView mview = new MembershipView(K);
+        final int numNodes = 200;
+        final List<Endpoint> endpoints = new ArrayList<>(numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint node = Utils.hostFromParts("127.0.0." + (i % 7), 1000 + i);
+            endpoints.add(node);
+            mview.ringAdd(node, Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+
+        for (int k = 0; k < K; k++) {
+            final List<Endpoint> expected = new ArrayList<>(endpoints);
+            expected.sort(Utils.AddressComparator.getComparatorWithSeed(k));
+            assertEquals(expected, mview.getRing(k));
+        }
+    }
+
+    /**
+     * The incrementally maintained configuration identifier must match the identifier
+     * computed from scratch over the same endpoints and identifiers.
+     */
+    @Test
+    public void incrementalConfigurationIdMatchesFullComputation() {
+        final MembershipView mview = new MembershipView(K);
+        final int numNodes = 100;
+        final List<NodeId> nodeIds = new ArrayList<>(numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            final NodeId nodeId = Utils.nodeIdFromUUID(UUID.randomUUID());
+            nodeIds.add(nodeId);
+            mview.ringAdd(Utils.hostFromParts("127.0.0.1", i), nodeId);
+        }
+        for (int i = 0; i < numNodes; i += 2) {
+            mview.ringDelete(Utils.hostFromParts("127.0.0.1", i));
+        }
+        final MembershipView.Configuration configuration = mview.getConfiguration();
+        assertEquals(mview.getCurrentConfigurationId(), configuration.getConfigurationId());
+        assertEquals(mview.getCurrentConfigurationId(),
+                     MembershipView.Configuration.getConfigurationId(nodeIds, mview.getRing(0)));
+
+        // A view bootstrapped from the configuration must arrive at the same identifier
+        final MembershipView copy = new MembershipView(K, configuration.nodeIds, configuration.endpoints);
+        assertEquals(mview.getCurrentConfigurationId(), copy.getCurrentConfigurationId());
+    }
+
+    /**
+     * Configurations that differ only in which host has which port must have different identifiers.
+     */
+    @Test
+    public void configurationIdWithSwappedPorts() {
+        final List<NodeId> nodeIds = new ArrayList<>();
+        nodeIds.add(Utils.nodeIdFromUUID(UUID.randomUUID()));
+        nodeIds.add(Utils.nodeIdFromUUID(UUID.randomUUID()));
+        final List<Endpoint> first = new ArrayList<>();
+        first.add(Utils.hostFromParts("127.0.0.1", 1));
+        first.add(Utils.hostFromParts("127.0.0.2", 2));
+        final List<Endpoint> second = new ArrayList<>();
+        second.add(Utils.hostFromParts("127.0.0.1", 2));
+        second.add(Utils.hostFromParts("127.0.0.2", 1));
+        assertNotEquals(new MembershipView(K, nodeIds, first).getCurrentConfigurationId(),
+                        new MembershipView(K, nodeIds, second).getCurrentConfigurationId());
+    }
+
+    /**
+     * A batch of additions and removals must yield the same view as applying them one at a time.
+     */
+    @Test
+    public void applyProposalMatchesSequentialChanges() {
+        final MembershipView batched = new MembershipView(K);
+        final MembershipView sequential = new MembershipView(K);
+        final int numNodes = 50;
+        final Map<Endpoint, NodeId> initial = new HashMap<>();
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint node = Utils.hostFromParts("127.0.0.1", i);
+            final NodeId nodeId = Utils.nodeIdFromUUID(UUID.randomUUID());
+            initial.put(node, nodeId);
+            sequential.ringAdd(node, nodeId);
+        }
+        batched.applyProposal(initial, Collections.emptySet());
+        assertEquals(sequential.getCurrentConfigurationId(), batched.getCurrentConfigurationId());
+
+        final Map<Endpoint, NodeId> nodesToAdd = new HashMap<>();
+        final Set<Endpoint> nodesToRemove = new HashSet<>();
+        for (int i = 0; i < 10; i++) {
+            final Endpoint node = Utils.hostFromParts("127.0.0.2", i);
+            final NodeId nodeId = Utils.nodeIdFromUUID(UUID.randomUUID());
+            nodesToAdd.put(node, nodeId);
+            sequential.ringAdd(node, nodeId);
+            final Endpoint removed = Utils.hostFromParts("127.0.0.1", i * 3);
+            nodesToRemove.add(removed);
+            sequential.ringDelete(removed);
+        }
+        batched.applyProposal(nodesToAdd, nodesToRemove);
+
+        assertEquals(sequential.getCurrentConfigurationId(), batched.getCurrentConfigurationId());
+        for (int k = 0; k < K; k++) {
+            assertEquals(sequential.getRing(k), batched.getRing(k));
+        }
+    }
+
+    /**
+     * An invalid batch must be rejected without modifying the view.
+     */
+    @Test
+    public void applyProposalRejectsInvalidBatch() {
+        final MembershipView mview = new MembershipView(K);
+        final Endpoint n1 = Utils.hostFromParts("127.0.0.1", 1);
+        final Endpoint n2 = Utils.hostFromParts("127.0.0.1", 2);
+        final Endpoint n3 = Utils.hostFromParts("127.0.0.1", 3);
+        mview.ringAdd(n1, Utils.nodeIdFromUUID(UUID.randomUUID()));
+        final long configurationId = mview.getCurrentConfigurationId();
+
+        // n3 is not in the ring
+        try {
+            mview.applyProposal(Collections.singletonMap(n2, Utils.nodeIdFromUUID(UUID.randomUUID())),
+                                Collections.singleton(n3));
+            fail();
+        } catch (final MembershipView.NodeNotInRingException ignored) {
+        }
+
+        // Two joiners with the same identifier
+        final NodeId nodeId = Utils.nodeIdFromUUID(UUID.randomUUID());
+        final Map<Endpoint, NodeId> nodesToAdd = new HashMap<>();
+        nodesToAdd.put(n2, nodeId);
+        nodesToAdd.put(n3, nodeId);
+        try {
+            mview.applyProposal(nodesToAdd, Collections.singleton(n1));
+            fail();
+        } catch (final MembershipView.UUIDAlreadySeenException ignored) {
+        }
+
+        assertEquals(configurationId, mview.getCurrentConfigurationId());
+        assertEquals(1, mview.getMembershipSize());
+        assertTrue(mview.isHostPresent(n1));
+        assertFalse(mview.isHostPresent(n2));
+        assertFalse(mview.isIdentifierPresent(nodeId));
+    }
+
+    /**
+     * The identifiers of a view stay blocked after removal, and are reported in sorted order.
+     */
+    @Test
+    public void identifiersSeenAreSortedAndRetained() {
+        final MembershipView mview = new MembershipView(K);
+        final int numNodes = 1000;
+        final List<NodeId> nodeIds = new ArrayList<>(numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint node = Utils.hostFromParts("127.0.0.1", i);
+            final NodeId nodeId = Utils.nodeIdFromUUID(UUID.randomUUID());
+            nodeIds.add(nodeId);
+            mview.ringAdd(node, nodeId);
+            if (i % 2 == 0) {
+                mview.ringDelete(node);
+            }
+        }
+        for (final NodeId nodeId: nodeIds) {
+            assertTrue(mview.isIdentifierPresent(nodeId));
+            assertEquals(JoinStatusCode.UUID_ALREADY_IN_RING,
+                         mview.isSafeToJoin(Utils.hostFromParts("127.0.0.2", 1), nodeId));
+        }
+        assertFalse(mview.isIdentifierPresent(Utils.nodeIdFromUUID(UUID.randomUUID())));
+
+        final List<NodeId> reported = mview.getConfiguration().nodeIds;
+        assertEquals(numNodes, reported.size());
+        nodeIds.sort(Comparator.comparingLong(NodeId::getHigh).thenComparingLong(NodeId::getLow));
+        assertEquals(nodeIds, reported);
+    }
+
+    /**
+     * Bootstrapping a view loads its identifiers in bulk. Duplicates are dropped and the configuration ID
+     * matches that of a view built one node at a time.
+     */
+    @Test
+    public void bootstrapLoadsIdentifiersInBulk() {
+        final MembershipView incremental = new MembershipView(K);
+        final int numNodes = 1000;
+        final List<Endpoint> endpoints = new ArrayList<>(numNodes);
+        final List<NodeId> nodeIds = new ArrayList<>(2 * numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint node = Utils.hostFromParts("127.0.0.1", i);
+            final NodeId nodeId = Utils.nodeIdFromUUID(UUID.randomUUID());
+            endpoints.add(node);
+            nodeIds.add(nodeId);
+            incremental.ringAdd(node, nodeId);
+        }
+        nodeIds.addAll(new ArrayList<>(nodeIds.subList(0, numNodes / 2)));
+        Collections.shuffle(nodeIds);
+
+        final MembershipView bootstrapped = new MembershipView(K, nodeIds, endpoints);
+        assertEquals(incremental.getCurrentConfigurationId(), bootstrapped.getCurrentConfigurationId());
+        assertEquals(incremental.getConfiguration().nodeIds, bootstrapped.getConfiguration().nodeIds);
+    }
+
+    /**
+     * Nodes whose ring hashes collide all stay on the rings, ordered by address regardless of the order in
+     * which they joined, so every member keeps K monitors.
+     */
+    @Test
+    public void ringHashCollisionsKeepAllNodes() {
+        // Ports 2i and 2i + 1 collide on every ring
+        final List<ToLongFunction<Endpoint>> hashFunctions = new ArrayList<>(K);
+        for (int k = 0; k < K; k++) {
+            final int seed = k;
+            hashFunctions.add(endpoint -> (endpoint.getPort() / 2) ^ seed);
+        }
+        final int numNodes = 10;
+        final MembershipView ascending = new MembershipView(K, Collections.emptyList(), Collections.emptyList(),
+                                                            hashFunctions);
+        final MembershipView descending = new MembershipView(K, Collections.emptyList(), Collections.emptyList(),
+                                                             hashFunctions);
+        for (int i = 0; i < numNodes; i++) {
+            ascending.ringAdd(Utils.hostFromParts("127.0.0.1", i), Utils.nodeIdFromUUID(UUID.randomUUID()));
+            descending.ringAdd(Utils.hostFromParts("127.0.0.1", numNodes - 1 - i),
+                               Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        for (int k = 0; k < K; k++) {
+            assertEquals(numNodes, ascending.getRing(k).size());
+            assertEquals(ascending.getRing(k), descending.getRing(k));
+        }
+        for (int i = 0; i < numNodes; i++) {
+            assertEquals(K, ascending.getMonitorsOf(Utils.hostFromParts("127.0.0.1", i)).size());
+        }
+
+        // A joiner that collides with a member is expected to take the position it gets once it joins
+        final Endpoint joiner = Utils.hostFromParts("127.0.0.1", numNodes);
+        ascending.ringAdd(Utils.hostFromParts("127.0.0.1", numNodes + 1), Utils.nodeIdFromUUID(UUID.randomUUID()));
+        final List<Endpoint> expectedMonitors = ascending.getExpectedMonitorsOf(joiner);
+        ascending.ringAdd(joiner, Utils.nodeIdFromUUID(UUID.randomUUID()));
+        assertEquals(expectedMonitors, ascending.getMonitoreesOf(joiner));
+
+        // Removing a node leaves the node it collides with in place
+        ascending.ringDelete(Utils.hostFromParts("127.0.0.1", 4));
+        for (int k = 0; k < K; k++) {
+            assertEquals(numNodes + 1, ascending.getRing(k).size());
+            assertTrue(ascending.getRing(k).contains(Utils.hostFromParts("127.0.0.1", 5)));
+        }
+    }
+}
@@ -15,13 +15,17 @@ package com.vrg.rapid;
 
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.vrg.rapid.messaging.IBroadcaster;
 import com.vrg.rapid.messaging.IMessagingClient;
 import com.vrg.rapid.messaging.IMessagingServer;
+import com.vrg.rapid.messaging.impl.ExpanderBroadcaster;
+import com.vrg.rapid.messaging.impl.GossipBroadcaster;
 import com.vrg.rapid.messaging.impl.GrpcClient;
 import com.vrg.rapid.messaging.impl.GrpcServer;
 import com.vrg.rapid.monitoring.impl.PingPongFailureDetector;
 import com.vrg.rapid.pb.Endpoint;
 import com.vrg.rapid.pb.FastRoundPhase2bMessage;
+import com.vrg.rapid.pb.GossipMessage;
 import com.vrg.rapid.pb.JoinMessage;
 import com.vrg.rapid.pb.JoinResponse;
 import com.vrg.rapid.pb.JoinStatusCode;
@@ -31,6 +35,7 @@ import com.vrg.rapid.pb.PreJoinMessage;
 import com.vrg.rapid.pb.ProbeMessage;
 import com.vrg.rapid.pb.RapidRequest;
 import com.vrg.rapid.pb.RapidResponse;
+import io.grpc.stub.StreamObserver;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -38,18 +43,25 @@ import org.junit.Test;
 import javax.annotation.Nullable;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
 
 import static junit.framework.TestCase.assertTrue;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 /**
@@ -390,11 +402,67 @@ public class MessagingTest {
     }
 
     /**
-     * Tests our broadcaster to make sure it receives responses from all nodes it sends messages to.
+     * Retries to a destination are only sent while its retry budget allows them. A client with an empty
+     * budget gives up after the first dropped message, whereas one with the default budget retries past it.
      */
     @Test
-    public void broadcasterTest() throws IOException, ExecutionException, InterruptedException {
-        final int N = 100;
+    public void retryBudgetLimitsRetries() throws InterruptedException, ExecutionException,
+            IOException, MembershipView.NodeAlreadyInRingException {
+        final int serverPort = 1234;
+        final Endpoint serverAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort);
+        final List<ServerDropInterceptors.FirstN> interceptors = new ArrayList<>();
+        // Drops the first two probes
+        interceptors.add(new ServerDropInterceptors.FirstN(1, RapidRequest.ContentCase.PROBEMESSAGE));
+        createAndStartMembershipService(serverAddr, interceptors);
+        final RapidRequest probe = Utils.toRapidRequest(ProbeMessage.getDefaultInstance());
+
+        final Settings noBudget = new Settings();
+        noBudget.setGrpcProbeTimeoutMs(100);
+        noBudget.setGrpcRetryBudgetRatio(0);
+        noBudget.setGrpcRetryBudgetBurst(0);
+        final IMessagingClient clientWithoutBudget = new GrpcClient(serverAddr, noBudget);
+        boolean exceptionCaught = false;
+        try {
+            clientWithoutBudget.sendMessage(serverAddr, probe).get();
+        } catch (final ExecutionException e) {
+            exceptionCaught = true;
+        }
+        assertTrue(exceptionCaught);
+
+        final Settings defaultBudget = new Settings();
+        defaultBudget.setGrpcProbeTimeoutMs(100);
+        final IMessagingClient clientWithBudget = new GrpcClient(serverAddr, defaultBudget);
+        final RapidResponse response = clientWithBudget.sendMessage(serverAddr, probe).get();
+        assertNotNull(response);
+        clientWithoutBudget.shutdown();
+        clientWithBudget.shutdown();
+    }
+
+    /**
+     * Tests our broadcaster to make sure that all nodes receive the messages it sends.
+     */
+    @Test
+    public void broadcasterTest() throws IOException, InterruptedException {
+        broadcastToAll(new Settings());
+    }
+
+    /**
+     * Same as broadcasterTest(), but one-way messages travel over request streams, without responses.
+     */
+    @Test
+    public void broadcasterTestWithStreaming() throws IOException, InterruptedException {
+        final Settings settings = new Settings();
+        settings.setUseStreamingTransport(true);
+        broadcastToAll(settings);
+    }
+
+    /**
+     * Best-effort messages are sent without waiting for the background executor, which only handles
+     * the responses.
+     */
+    @Test(timeout = 10000)
+    public void sendMessageBestEffortDoesNotBlock() throws IOException, ExecutionException, InterruptedException {
+        final int N = 5;
         final List<Endpoint> endpointList = new ArrayList<>(N);
         final int serverPort = 1234;
         for (int i = 0; i < N; i++) {
@@ -402,23 +470,187 @@ public class MessagingTest {
             createAndStartMembershipService(serverAddr);
             endpointList.add(serverAddr);
         }
+        final Endpoint clientAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort);
+        final SharedResources clientResources = new SharedResources(clientAddr);
+        final IMessagingClient client = new GrpcClient(clientAddr, clientResources, new Settings());
+        final CountDownLatch backgroundExecutorBlocked = new CountDownLatch(1);
+        clientResources.getBackgroundExecutor().execute(() -> {
+            try {
+                backgroundExecutorBlocked.await();
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        final RapidRequest probe = Utils.toRapidRequest(ProbeMessage.newBuilder().setSender(clientAddr).build());
+        final List<ListenableFuture<RapidResponse>> futures = new ArrayList<>(N);
+        for (final Endpoint remote : endpointList) {
+            futures.add(client.sendMessageBestEffort(remote, probe));
+        }
+        backgroundExecutorBlocked.countDown();
+        for (final ListenableFuture<RapidResponse> future : futures) {
+            assertEquals(NodeStatus.OK, future.get().getProbeResponse().getStatus());
+        }
+        client.shutdown();
+        clientResources.shutdown();
+    }
+
+    /**
+     * Sends requests over long-lived request streams. Responses have to be matched to their requests, including
+     * when more requests are in flight than a stream takes and some of them fall back to unary calls.
+     */
+    @Test
+    public void streamedRequests() throws IOException, ExecutionException, InterruptedException {
+        final int N = 5;
+        final List<Endpoint> endpointList = new ArrayList<>(N);
+        final int serverPort = 1234;
+        for (int i = 0; i < N; i++) {
+            final Endpoint serverAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort + i + 1);
+            createAndStartMembershipService(serverAddr);
+            endpointList.add(serverAddr);
+        }
+        final Endpoint bootstrappingAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort + N + 1);
+        final IMessagingServer bootstrappingServer = new GrpcServer(bootstrappingAddr, resources, false);
+        bootstrappingServer.start();
+
         final Endpoint clientAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort);
         final Settings settings = new Settings();
+        settings.setUseStreamingTransport(true);
         final IMessagingClient client = new GrpcClient(clientAddr, resources, settings);
-        final UnicastToAllBroadcaster broadcaster = new UnicastToAllBroadcaster(client);
-        broadcaster.setMembership(endpointList);
-        for (int i = 0; i < 10; i++) {
-            final List<ListenableFuture<RapidResponse>> futures =
-                    broadcaster.broadcast(Utils.toRapidRequest(FastRoundPhase2bMessage.getDefaultInstance()));
-            for (final ListenableFuture<RapidResponse> future : futures) {
-                assertNotNull(future);
-                final RapidResponse response = future.get();
-                assertNotNull(response);
-            }
+        final RapidRequest probe = Utils.toRapidRequest(ProbeMessage.newBuilder().setSender(clientAddr).build());
+        final List<ListenableFuture<RapidResponse>> futures = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            futures.add(client.sendMessage(endpointList.get(0), probe));
         }
+        for (final ListenableFuture<RapidResponse> future : futures) {
+            assertEquals(NodeStatus.OK, future.get().getProbeResponse().getStatus());
+        }
+        for (final Endpoint remote : endpointList) {
+            assertEquals(NodeStatus.OK,
+                         client.sendMessageBestEffort(remote, probe).get().getProbeResponse().getStatus());
+        }
+        assertEquals(NodeStatus.BOOTSTRAPPING,
+                     client.sendMessage(bootstrappingAddr, probe).get().getProbeResponse().getStatus());
         client.shutdown();
+        bootstrappingServer.shutdown();
+    }
+
+    /**
+     * A gossip broadcaster sends each message to at most {@code fanout} members, delivers and relays a message
+     * only the first time it receives it, and stops relaying once the message has no rounds left.
+     */
+    @Test
+    public void gossipBroadcasterDeduplicatesAndBoundsRelays() {
+        final int N = 50;
+        final int fanout = 4;
+        final Endpoint myAddr = Utils.hostFromParts(LOCALHOST_IP, 1234);
+        final List<Endpoint> membership = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            membership.add(Utils.hostFromParts(LOCALHOST_IP, 1234 + i));
+        }
+        final List<RapidRequest> relayed = new ArrayList<>();
+        final IMessagingClient client = new RecordingMessagingClient(membership, relayed);
+        final IBroadcaster broadcaster = new GossipBroadcaster.Factory(fanout, 3).createInstance(myAddr, client);
+        broadcaster.setMembership(membership);
+
+        // The message goes to this node directly, and to fanout other members through gossip
+        final RapidRequest payload = Utils.toRapidRequest(FastRoundPhase2bMessage.getDefaultInstance());
+        broadcaster.broadcast(payload);
+        assertEquals(fanout + 1, relayed.size());
+        assertEquals(payload, relayed.get(0));
+        assertEquals(fanout, relayed.stream().filter(RapidRequest::hasGossipMessage).count());
+
+        // A message from another member is delivered and relayed once
+        relayed.clear();
+        final GossipMessage gossipMessage = GossipMessage.newBuilder()
+                .setSender(membership.get(1))
+                .setMessageId(42)
+                .setRemainingRounds(2)
+                .setPayload(payload)
+                .build();
+        assertEquals(payload, broadcaster.receive(gossipMessage).orElse(null));
+        assertEquals(fanout, relayed.size());
+        for (final RapidRequest request : relayed) {
+            assertEquals(1, request.getGossipMessage().getRemainingRounds());
+            assertEquals(myAddr, request.getGossipMessage().getSender());
+        }
+        assertTrue(!broadcaster.receive(gossipMessage).isPresent());
+        assertEquals(fanout, relayed.size());
+
+        // A message in its last round is delivered but not relayed
+        relayed.clear();
+        assertTrue(broadcaster.receive(gossipMessage.toBuilder().setMessageId(43).setRemainingRounds(1).build())
+                              .isPresent());
+        assertTrue(relayed.isEmpty());
     }
 
+    /**
+     * Floods a broadcast through an in-memory cluster of ExpanderBroadcasters, and checks that every member
+     * relays it to its K ring successors only, and that it reaches every member although relaying stops after
+     * ceil(log_K(N)) + 3 hops.
+     */
+    @Test
+    public void expanderBroadcasterFloodsOverRingSuccessors() {
+        final int N = 200;
+        final List<Endpoint> membership = new ArrayList<>(N);
+        for (int i = 0; i < N; i++) {
+            membership.add(Utils.hostFromParts(LOCALHOST_IP, 1234 + i));
+        }
+        final MembershipView membershipView = new MembershipView(K, Collections.emptyList(), membership);
+        final Map<Endpoint, IBroadcaster> broadcasters = new HashMap<>();
+        final Map<Endpoint, RecordingMessagingClient> clients = new HashMap<>();
+        for (final Endpoint member : membership) {
+            final RecordingMessagingClient client = new RecordingMessagingClient(membership, new ArrayList<>());
+            final IBroadcaster broadcaster = new ExpanderBroadcaster.Factory(K).createInstance(member, client,
+                    () -> membershipView.getRingSuccessorsOf(member));
+            broadcaster.setMembership(membershipView.getRing(0));
+            clients.put(member, client);
+            broadcasters.put(member, broadcaster);
+        }
+
+        // The source delivers the message to itself, and hands it to its monitors, which succeed it on the rings
+        final Endpoint source = membership.get(0);
+        final RapidRequest payload = Utils.toRapidRequest(FastRoundPhase2bMessage.getDefaultInstance());
+        broadcasters.get(source).broadcast(payload);
+        final RecordingMessagingClient sourceClient = clients.get(source);
+        assertEquals(payload, sourceClient.sent.get(0));
+        assertEquals(new HashSet<>(membershipView.getMonitorsOf(source)),
+                     new HashSet<>(sourceClient.recipients.subList(1, sourceClient.recipients.size())));
+
+        final Set<Endpoint> delivered = new HashSet<>();
+        delivered.add(source);
+        final Map<Endpoint, Integer> messagesSent = new HashMap<>();
+        int hops = 0;
+        while (true) {
+            final List<Endpoint> pendingRecipients = new ArrayList<>();
+            final List<GossipMessage> pendingMessages = new ArrayList<>();
+            for (final Map.Entry<Endpoint, RecordingMessagingClient> entry : clients.entrySet()) {
+                final RecordingMessagingClient client = entry.getValue();
+                for (int i = 0; i < client.sent.size(); i++) {
+                    if (client.sent.get(i).hasGossipMessage()) {
+                        pendingRecipients.add(client.recipients.get(i));
+                        pendingMessages.add(client.sent.get(i).getGossipMessage());
+                        messagesSent.merge(entry.getKey(), 1, Integer::sum);
+                    }
+                }
+                client.sent.clear();
+                client.recipients.clear();
+            }
+            if (pendingMessages.isEmpty()) {
+                break;
+            }
+            hops++;
+            for (int i = 0; i < pendingMessages.size(); i++) {
+                if (broadcasters.get(pendingRecipients.get(i)).receive(pendingMessages.get(i)).isPresent()) {
+                    assertTrue(delivered.add(pendingRecipients.get(i)));
+                }
+            }
+        }
+        assertEquals(N, delivered.size());
+        assertTrue(hops <= (int) Math.ceil(Math.log(N) / Math.log(K)) + 3);
+        for (final int count : messagesSent.values()) {
+            assertTrue(count <= K);
+        }
+    }
 
     /**
      * Tests all GrpcClient request types to an endpoint that does not exist, checking if all calls fail.
@@ -462,6 +694,148 @@ public class MessagingTest {
     }
 
 
+    /**
+     * With concurrent protocol execution enabled, PreJoin messages are handled off the protocol executor
+     * and return the same responses.
+     */
+    @Test
+    public void preJoinWithConcurrentProtocolExecution() throws InterruptedException, ExecutionException {
+        final int serverPort = 1234;
+        final int numNodes = 10;
+        final Endpoint serverAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort);
+        final MembershipView membershipView = new MembershipView(K);
+        for (int i = 0; i < numNodes; i++) {
+            membershipView.ringAdd(Utils.hostFromParts(LOCALHOST_IP, serverPort + i),
+                                   Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        final Settings settings = new Settings();
+        settings.setUseConcurrentProtocolExecution(true);
+        final IMessagingClient client = new GrpcClient(serverAddr);
+        final MembershipService service = new MembershipService(serverAddr, new WatermarkBuffer(K, H, L),
+                membershipView, resources, settings, client, new PingPongFailureDetector.Factory(serverAddr, client));
+        services.add(service);
+
+        final int numJoiners = 100;
+        final List<ListenableFuture<RapidResponse>> futures = new ArrayList<>(numJoiners);
+        for (int i = 0; i < numJoiners; i++) {
+            final Endpoint joiner = Utils.hostFromParts("127.0.0.2", serverPort + i);
+            futures.add(service.handleMessage(Utils.toRapidRequest(PreJoinMessage.newBuilder()
+                                                    .setSender(joiner)
+                                                    .setNodeId(Utils.nodeIdFromUUID(UUID.randomUUID()))
+                                                    .build())));
+        }
+        for (int i = 0; i < numJoiners; i++) {
+            final Endpoint joiner = Utils.hostFromParts("127.0.0.2", serverPort + i);
+            final JoinResponse response = futures.get(i).get().getJoinResponse();
+            assertEquals(JoinStatusCode.SAFE_TO_JOIN, response.getStatusCode());
+            assertEquals(membershipView.getCurrentConfigurationId(), response.getConfigurationId());
+            assertEquals(membershipView.getExpectedMonitorsOf(joiner), response.getEndpointsList());
+        }
+        final MembershipService.ProtocolStageMetrics metrics =
+                service.getStageMetrics(MembershipService.ProtocolStage.PRE_JOIN);
+        assertEquals(0, metrics.getQueueDepth());
+        assertTrue(metrics.getCompletedTasks() <= numJoiners);
+        assertTrue(metrics.getMaxLatencyNanos() <= metrics.getTotalLatencyNanos());
+        assertEquals(0, resources.getCallerRunsCount());
+    }
+
+    /**
+     * Phase 2 join messages from hosts that have already been added receive the SAFE_TO_JOIN response
+     * for the current configuration, which is built once and shared.
+     */
+    @Test
+    public void joinResponseIsSharedWithinConfiguration() throws InterruptedException, ExecutionException {
+        final int serverPort = 1234;
+        final int numNodes = 5;
+        final Endpoint serverAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort);
+        final MembershipView membershipView = new MembershipView(K);
+        final List<NodeId> nodeIds = new ArrayList<>(numNodes);
+        for (int i = 0; i < numNodes; i++) {
+            nodeIds.add(Utils.nodeIdFromUUID(UUID.randomUUID()));
+            membershipView.ringAdd(Utils.hostFromParts(LOCALHOST_IP, serverPort + i), nodeIds.get(i));
+        }
+        final IMessagingClient client = new GrpcClient(serverAddr);
+        final MembershipService service = new MembershipService(serverAddr, new WatermarkBuffer(K, H, L),
+                membershipView, resources, new Settings(), client,
+                new PingPongFailureDetector.Factory(serverAddr, client));
+        services.add(service);
+
+        final List<RapidResponse> responses = new ArrayList<>();
+        for (int i = 1; i < numNodes; i++) {
+            final JoinMessage joinMessage = JoinMessage.newBuilder()
+                    .setSender(Utils.hostFromParts(LOCALHOST_IP, serverPort + i))
+                    .setNodeId(nodeIds.get(i))
+                    .setConfigurationId(-1)
+                    .build();
+            responses.add(service.handleMessage(Utils.toRapidRequest(joinMessage)).get());
+        }
+        for (final RapidResponse response: responses) {
+            assertSame(responses.get(0), response);
+        }
+        final JoinResponse joinResponse = responses.get(0).getJoinResponse();
+        assertEquals(JoinStatusCode.SAFE_TO_JOIN, joinResponse.getStatusCode());
+        assertEquals(membershipView.getCurrentConfigurationId(), joinResponse.getConfigurationId());
+        assertEquals(numNodes, joinResponse.getEndpointsCount());
+        assertEquals(numNodes, joinResponse.getIdentifiersCount());
+    }
+
+    /**
+     * Records the messages sent to members of {@code membership}, and responds to them immediately.
+     */
+    /**
+     * A server without a membership service, that counts the requests it receives.
+     */
+    private static final class CountingGrpcServer extends GrpcServer {
+        private final CountDownLatch received;
+
+        private CountingGrpcServer(final Endpoint address, @Nullable final SharedResources resources,
+                                   final CountDownLatch received) {
+            super(address, Objects.requireNonNull(resources), false);
+            this.received = received;
+        }
+
+        @Override
+        public void sendRequest(final RapidRequest rapidRequest,
+                                final StreamObserver<RapidResponse> responseObserver) {
+            received.countDown();
+            super.sendRequest(rapidRequest, responseObserver);
+        }
+
+        @Override
+        protected void sendOneWayRequest(final RapidRequest rapidRequest) {
+            received.countDown();
+            super.sendOneWayRequest(rapidRequest);
+        }
+    }
+
+    private static final class RecordingMessagingClient implements IMessagingClient {
+        private final List<Endpoint> membership;
+        private final List<RapidRequest> sent;
+        private final List<Endpoint> recipients = new ArrayList<>();
+
+        private RecordingMessagingClient(final List<Endpoint> membership, final List<RapidRequest> sent) {
+            this.membership = membership;
+            this.sent = sent;
+        }
+
+        @Override
+        public ListenableFuture<RapidResponse> sendMessage(final Endpoint remote, final RapidRequest msg) {
+            return sendMessageBestEffort(remote, msg);
+        }
+
+        @Override
+        public ListenableFuture<RapidResponse> sendMessageBestEffort(final Endpoint remote, final RapidRequest msg) {
+            assertTrue(membership.contains(remote));
+            sent.add(msg);
+            recipients.add(remote);
+            return Futures.immediateFuture(RapidResponse.getDefaultInstance());
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+
     /**
      * Create a membership service listenting on serverAddr
      */
@@ -516,6 +890,30 @@ public class MessagingTest {
         services.add(service);
     }
 
+    private void broadcastToAll(final Settings settings) throws IOException, InterruptedException {
+        final int N = 100;
+        final int numMessages = 10;
+        final CountDownLatch received = new CountDownLatch(N * numMessages);
+        final List<Endpoint> endpointList = new ArrayList<>(N);
+        final int serverPort = 1234;
+        for (int i = 0; i < N; i++) {
+            final Endpoint serverAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort + i + 1);
+            final IMessagingServer rpcServer = new CountingGrpcServer(serverAddr, resources, received);
+            rpcServer.start();
+            rpcServers.add(rpcServer);
+            endpointList.add(serverAddr);
+        }
+        final Endpoint clientAddr = Utils.hostFromParts(LOCALHOST_IP, serverPort);
+        final IMessagingClient client = new GrpcClient(clientAddr, resources, settings);
+        final UnicastToAllBroadcaster broadcaster = new UnicastToAllBroadcaster(client);
+        broadcaster.setMembership(endpointList);
+        for (int i = 0; i < numMessages; i++) {
+            broadcaster.broadcast(Utils.toRapidRequest(FastRoundPhase2bMessage.getDefaultInstance()));
+        }
+        assertTrue(received.await(10, TimeUnit.SECONDS));
+        client.shutdown();
+    }
+
     private JoinResponse sendPreJoinMessage(final IMessagingClient client, final Endpoint serverAddr,
                                             final Endpoint clientAddr, final NodeId identifier)
             throws ExecutionException, InterruptedException {
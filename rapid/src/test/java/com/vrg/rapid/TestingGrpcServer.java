@@ -33,4 +33,14 @@ public class TestingGrpcServer extends GrpcServer {
         }
         super.sendRequest(rapidRequest, responseObserver);
     }
+
+    @Override
+    protected void sendOneWayRequest(final RapidRequest rapidRequest) {
+        for (final ServerDropInterceptors.FirstN interceptor: interceptors) {
+            if (!interceptor.filter(rapidRequest)) {
+                return;
+            }
+        }
+        super.sendOneWayRequest(rapidRequest);
+    }
 }
@@ -0,0 +1,140 @@
+/*
+ * Copyright © 2016 - 2017 VMware, Inc. All Rights Reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the “License”); you may not use this file
+ * except in compliance with the License. You may obtain a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the
+ * License is distributed on an “AS IS” BASIS, without warranties or conditions of any kind,
+ * EITHER EXPRESS OR IMPLIED. See the License for the specific language governing
+ * permissions and limitations under the License.
+ */
+
+package com.vrg.rapid;
+
+import com.vrg.rapid.pb.Endpoint;
+import com.vrg.rapid.pb.NodeId;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests for the history of view changes used to answer rejoining nodes with deltas.
+ */
+public class ViewChangeHistoryTest {
+    private static final int K = 10;
+
+    /**
+     * Applying the folded delta to a base configuration yields the current configuration, for every base
+     * configuration in the history. The series of changes includes nodes that are added and removed again,
+     * and a node that is replaced with a new identifier.
+     */
+    @Test
+    public void deltaReconstructsCurrentConfiguration() {
+        final MembershipView view = new MembershipView(K);
+        final ViewChangeHistory history = new ViewChangeHistory(10);
+        for (int i = 0; i < 5; i++) {
+            view.ringAdd(Utils.hostFromParts("127.0.0.1", i), Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        final long initialConfigurationId = view.getCurrentConfigurationId();
+        final Map<Long, MembershipView.Configuration> configurations = new HashMap<>();
+        configurations.put(initialConfigurationId, view.getConfiguration());
+
+        // Add 5 and 6
+        applyAndRecord(view, history, addedNodes(5, 6), Collections.emptySet());
+        configurations.put(view.getCurrentConfigurationId(), view.getConfiguration());
+        // Remove 0 and 5, add 7
+        applyAndRecord(view, history, addedNodes(7), endpoints(0, 5));
+        configurations.put(view.getCurrentConfigurationId(), view.getConfiguration());
+        // Add 0 back with a new identifier
+        applyAndRecord(view, history, addedNodes(0), Collections.emptySet());
+        configurations.put(view.getCurrentConfigurationId(), view.getConfiguration());
+        // Remove 6
+        applyAndRecord(view, history, Collections.emptyMap(), endpoints(6));
+
+        final MembershipView.Configuration current = view.getConfiguration();
+        for (final MembershipView.Configuration base : configurations.values()) {
+            final ViewChangeHistory.Delta delta = history.deltaSince(base.getConfigurationId(),
+                                                                     current.getConfigurationId());
+            assertNotNull(delta);
+            final Set<Endpoint> endpoints = new HashSet<>(base.endpoints);
+            endpoints.removeAll(delta.removed);
+            endpoints.addAll(delta.added.keySet());
+            final Set<NodeId> identifiers = new LinkedHashSet<>(base.nodeIds);
+            identifiers.addAll(delta.identifiers);
+            assertEquals(new HashSet<>(current.endpoints), endpoints);
+            assertEquals(current.getConfigurationId(),
+                         MembershipView.Configuration.getConfigurationId(identifiers, endpoints));
+        }
+        // Nodes 5 and 6 joined and left within the window, so they do not show up at all,
+        // while node 0 was replaced and has to be both removed and added.
+        final ViewChangeHistory.Delta delta = history.deltaSince(initialConfigurationId,
+                                                                 current.getConfigurationId());
+        assertNotNull(delta);
+        assertEquals(endpoints(0, 7), delta.added.keySet());
+        assertEquals(endpoints(0), delta.removed);
+        assertEquals(4, delta.identifiers.size());
+    }
+
+    /**
+     * Configurations that the history does not cover do not yield a delta.
+     */
+    @Test
+    public void noDeltaForUnknownConfigurations() {
+        final MembershipView view = new MembershipView(K);
+        final ViewChangeHistory history = new ViewChangeHistory(2);
+        view.ringAdd(Utils.hostFromParts("127.0.0.1", 0), Utils.nodeIdFromUUID(UUID.randomUUID()));
+        final long first = view.getCurrentConfigurationId();
+        applyAndRecord(view, history, addedNodes(1), Collections.emptySet());
+        final long second = view.getCurrentConfigurationId();
+        applyAndRecord(view, history, addedNodes(2), Collections.emptySet());
+        applyAndRecord(view, history, addedNodes(3), Collections.emptySet());
+        final long current = view.getCurrentConfigurationId();
+
+        // The first change was evicted
+        assertNull(history.deltaSince(first, current));
+        assertNotNull(history.deltaSince(second, current));
+        assertNull(history.deltaSince(12345, current));
+
+        final ViewChangeHistory.Delta delta = history.deltaSince(current, current);
+        assertNotNull(delta);
+        assertTrue(delta.added.isEmpty());
+        assertTrue(delta.removed.isEmpty());
+    }
+
+    private static void applyAndRecord(final MembershipView view, final ViewChangeHistory history,
+                                       final Map<Endpoint, NodeId> nodesToAdd, final Set<Endpoint> nodesToRemove) {
+        final long previousConfigurationId = view.getCurrentConfigurationId();
+        view.applyProposal(nodesToAdd, nodesToRemove);
+        history.record(previousConfigurationId, view.getCurrentConfigurationId(), nodesToAdd,
+                       Collections.emptyMap(), nodesToRemove);
+    }
+
+    private static Map<Endpoint, NodeId> addedNodes(final int... ports) {
+        final Map<Endpoint, NodeId> nodes = new HashMap<>();
+        for (final int port : ports) {
+            nodes.put(Utils.hostFromParts("127.0.0.1", port), Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        return nodes;
+    }
+
+    private static Set<Endpoint> endpoints(final int... ports) {
+        final Set<Endpoint> nodes = new HashSet<>();
+        for (final int port : ports) {
+            nodes.add(Utils.hostFromParts("127.0.0.1", port));
+        }
+        return nodes;
+    }
+}
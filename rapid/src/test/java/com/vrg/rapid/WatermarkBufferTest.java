@@ -19,6 +19,7 @@ import com.vrg.rapid.pb.LinkUpdateMessage;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
@@ -251,6 +252,67 @@ public class WatermarkBufferTest {
         assertEquals(proposal.size(), numNodes);
     }
 
+    /**
+     * Applying a batch yields the same proposals as applying its messages one at a time.
+     */
+    @Test
+    public void waterMarkTestAggregateBatch() {
+        final WatermarkBuffer wbSequential = new WatermarkBuffer(K, H, L);
+        final WatermarkBuffer wbBatched = new WatermarkBuffer(K, H, L);
+        final int numNodes = 5;
+        final List<LinkUpdateMessage> batch = new ArrayList<>();
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint dst = Utils.hostFromParts("127.0.0.2", 2 + i);
+            for (int ringNumber = 0; ringNumber < K; ringNumber++) {
+                final LinkUpdateMessage msg = createLinkUpdateMessage(Utils.hostFromParts("127.0.0.1", 1), dst,
+                                                                      LinkStatus.UP, CONFIGURATION_ID, ringNumber);
+                // Interleave a duplicate of every message, which must not count twice
+                batch.add(msg);
+                batch.add(msg);
+            }
+        }
+
+        final List<Endpoint> expected = new ArrayList<>();
+        for (final LinkUpdateMessage msg: batch) {
+            expected.addAll(wbSequential.aggregateForProposal(msg));
+        }
+        final List<Endpoint> actual = wbBatched.aggregateBatch(batch);
+        assertEquals(numNodes, actual.size());
+        assertEquals(expected, actual);
+        assertEquals(wbSequential.getNumProposals(), wbBatched.getNumProposals());
+        assertEquals(0, wbBatched.aggregateBatch(Collections.emptyList()).size());
+    }
+
+    /**
+     * Repeated reports on the same ring do not count towards the watermarks, including for K > 64
+     * where a ring's report bit lives past the first word of the mask.
+     */
+    @Test
+    public void waterMarkTestDuplicateRingNumbers() {
+        final int largeK = 100;
+        final int largeH = 90;
+        final WatermarkBuffer wb = new WatermarkBuffer(largeK, largeH, L);
+        final Endpoint dst = Utils.hostFromParts("127.0.0.2", 2);
+        List<Endpoint> ret;
+
+        for (int i = 0; i < largeH - 1; i++) {
+            for (int j = 0; j < 2; j++) {
+                ret = wb.aggregateForProposal(createLinkUpdateMessage(
+                        Utils.hostFromParts("127.0.0.1", i + 1), dst, LinkStatus.UP, CONFIGURATION_ID, largeK - 1 - i));
+                assertEquals(0, ret.size());
+            }
+        }
+        ret = wb.aggregateForProposal(createLinkUpdateMessage(
+                Utils.hostFromParts("127.0.0.1", largeH), dst, LinkStatus.UP, CONFIGURATION_ID, largeK - largeH + 1));
+        assertEquals(0, ret.size());
+        assertEquals(0, wb.getNumProposals());
+
+        ret = wb.aggregateForProposal(createLinkUpdateMessage(
+                Utils.hostFromParts("127.0.0.1", largeH), dst, LinkStatus.UP, CONFIGURATION_ID, 0));
+        assertEquals(1, ret.size());
+        assertEquals(1, wb.getNumProposals());
+    }
+
     @Test
     public void waterMarkTestLinkInvalidation() {
         final MembershipView mView = new MembershipView(K);
@@ -300,6 +362,41 @@ public class WatermarkBufferTest {
         }
     }
 
+    /**
+     * Many simultaneous failures, some of which monitor each other. Explicit reports come only from
+     * live monitors, and link invalidation must account for the rest so that every failed node ends up
+     * in a proposal.
+     */
+    @Test
+    public void waterMarkTestLinkInvalidationManyFailures() {
+        final MembershipView mView = new MembershipView(K);
+        final WatermarkBuffer wb = new WatermarkBuffer(K, H, L);
+        final int numNodes = 200;
+        final List<Endpoint> endpoints = new ArrayList<>();
+        for (int i = 0; i < numNodes; i++) {
+            final Endpoint node = Utils.hostFromParts("127.0.0.2", 2 + i);
+            endpoints.add(node);
+            mView.ringAdd(node, Utils.nodeIdFromUUID(UUID.randomUUID()));
+        }
+        final Set<Endpoint> failedNodes = new HashSet<>();
+        for (int i = 0; i < numNodes; i += 5) {
+            failedNodes.add(endpoints.get(i));
+        }
+
+        final Set<Endpoint> proposed = new HashSet<>();
+        for (int ringNumber = 0; ringNumber < K; ringNumber++) {
+            for (final Endpoint failedNode: failedNodes) {
+                final Endpoint monitor = mView.getMonitorsOf(failedNode).get(ringNumber);
+                if (!failedNodes.contains(monitor)) {
+                    proposed.addAll(wb.aggregateForProposal(createLinkUpdateMessage(monitor, failedNode,
+                            LinkStatus.DOWN, CONFIGURATION_ID, ringNumber)));
+                }
+            }
+        }
+        proposed.addAll(wb.invalidateFailingLinks(mView));
+        assertEquals(failedNodes, proposed);
+    }
+
     private LinkUpdateMessage createLinkUpdateMessage(final Endpoint src,
                                                       final Endpoint dst,
                                                       final LinkStatus status,